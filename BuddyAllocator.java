@@ -0,0 +1,167 @@
+class BuddyAllocator
+{
+	// Memory allocator for variable size partitions, using the buddy system.
+	// The memory it manages is divided in units of Config.MINBLOCK words, and
+	// every block has a power of two number of units, starting at a multiple
+	// of its own size. There is one free list per size (order), so allocating
+	// and freeing take O(log n): a block is split in halves until it has the
+	// size asked for, and when it is freed it merges with its buddy (the
+	// other half it was split from) for as long as the buddy is free too.
+	//
+	// The free lists are doubly linked through arrays indexed by unit, so
+	// nothing is allocated after the constructor.
+
+	private int base;	// physical address of unit 0
+	private int units;
+	private int maxOrder;
+	private int[] head;	// first free block of each order, -1 if none
+	private int[] next;
+	private int[] prev;
+	private int[] order;	// order of the block starting at each unit
+	private boolean[] free;	// block starting at each unit is free
+	private int[] requested;	// words asked for the block at each unit
+
+	// Statistics
+	private int usedWords;
+	private int requestedWords;
+	private int failures;
+
+	public BuddyAllocator(int baseAddress, int words)
+	{
+		base = baseAddress;
+		units = words / Config.MINBLOCK;
+		maxOrder = 0;
+		while ((1 << (maxOrder+1)) <= units)
+			++maxOrder;
+
+		head = new int[maxOrder+1];
+		for (int k = 0; k <= maxOrder; k++)
+			head[k] = -1;
+		next = new int[units];
+		prev = new int[units];
+		order = new int[units];
+		free = new boolean[units];
+		requested = new int[units];
+
+		// The size may not be a power of two: start with the largest
+		// aligned blocks that fit
+		int u = 0;
+		for (int k = maxOrder; k >= 0; k--)
+			while (u + (1 << k) <= units && u % (1 << k) == 0)
+			{
+				insert(u, k);
+				u += 1 << k;
+			}
+	}
+
+	// Returns the physical address of a block with at least words words,
+	// or -1 if there is no free block big enough.
+	public int alloc(int words)
+	{
+		int k = 0;
+		while (k <= maxOrder && (1 << k) * Config.MINBLOCK < words)
+			++k;
+
+		int j = k;
+		while (j <= maxOrder && head[j] == -1)
+			++j;
+		if (j > maxOrder)
+		{
+			++failures;
+			return -1;
+		}
+
+		int u = head[j];
+		remove(u, j);
+		// split, keeping the lower half and freeing the upper one
+		while (j > k)
+		{
+			--j;
+			insert(u + (1 << j), j);
+		}
+
+		order[u] = k;
+		free[u] = false;
+		requested[u] = words;
+		usedWords += getBlockSize(u);
+		requestedWords += words;
+		return base + u * Config.MINBLOCK;
+	}
+
+	public void free(int address)
+	{
+		int u = (address - base) / Config.MINBLOCK;
+		int k = order[u];
+
+		usedWords -= getBlockSize(u);
+		requestedWords -= requested[u];
+
+		while (k < maxOrder)
+		{
+			int buddy = u ^ (1 << k);
+			if (buddy + (1 << k) > units || !free[buddy] || order[buddy] != k)
+				break;
+			remove(buddy, k);
+			u = Math.min(u, buddy);
+			++k;
+		}
+		insert(u, k);
+	}
+
+	// Words of the block that starts at address
+	public int getSize(int address)
+	{
+		return getBlockSize((address - base) / Config.MINBLOCK);
+	}
+
+	private int getBlockSize(int u)
+	{
+		return (1 << order[u]) * Config.MINBLOCK;
+	}
+
+	private void insert(int u, int k)
+	{
+		order[u] = k;
+		free[u] = true;
+		prev[u] = -1;
+		next[u] = head[k];
+		if (head[k] != -1)
+			prev[head[k]] = u;
+		head[k] = u;
+	}
+
+	private void remove(int u, int k)
+	{
+		if (prev[u] != -1)
+			next[prev[u]] = next[u];
+		else
+			head[k] = next[u];
+		if (next[u] != -1)
+			prev[next[u]] = prev[u];
+		free[u] = false;
+	}
+
+	// Fragmentation report: internal is the part of the used blocks that
+	// was not asked for, external is the part of the free memory that is
+	// not in the largest free block.
+	public String getStats()
+	{
+		int total = units * Config.MINBLOCK;
+		int freeWords = 0;
+		int freeBlocks = 0;
+		int largest = 0;
+		for (int k = 0; k <= maxOrder; k++)
+			for (int u = head[k]; u != -1; u = next[u])
+			{
+				++freeBlocks;
+				freeWords += (1 << k) * Config.MINBLOCK;
+				largest = Math.max(largest, (1 << k) * Config.MINBLOCK);
+			}
+
+		int internal = usedWords == 0 ? 0 : 100 * (usedWords - requestedWords) / usedWords;
+		int external = freeWords == 0 ? 0 : 100 * (freeWords - largest) / freeWords;
+		return "Memory: " + usedWords + "/" + total + " words used, " + freeWords + " free in "
+			+ freeBlocks + " blocks (largest " + largest + "), fragmentation "
+			+ internal + "% internal, " + external + "% external, " + failures + " failed allocations";
+	}
+}
@@ -2,19 +2,61 @@ class Config
 {
 	//SOPA
 	public final static int QUANTUM = 10;
+	public final static boolean TURBO = false; // run on virtual cycles, not on QUANTUM
+	public final static double INSTRUCTIONS_PER_TICK = 0.5; // per CPU, in turbo mode
 	public final static int NCPU = 3;
 	public final static int NPARTITIONS = 22;
+	// CPU that takes each hardware interrupt, by number, -1 for any CPU
+	public final static int[] INTROUTE = { -1, -1, -1, -1, -1, 0, 1, -1, -1, -1, -1, -1, -1, -1, -1, -1 };
 	public final static boolean LOGPRINTS = true;
+	public final static boolean TRACE = false; // trace instructions from the start
+	public final static boolean TRACEFLUSH = true; // write the trace while running
+	public final static String TRACEFILE = "trace.bin";
+	public final static int TRACEBUFFER = 65536; // records per CPU
+	public final static int PERFREPORT = 0; // seconds between instr/s reports, 0 is off
+	public final static boolean TRANSLATION = false; // run basic blocks
+	public final static boolean OFFHEAP = false; // keep the memory words out of the Java heap (see -XX:MaxDirectMemorySize)
+	public final static boolean EVENTDRIVEN = false; // one event loop instead of a thread per device
+	public final static boolean VIRTUALTHREADS = false; // devices on virtual threads, if the JVM has them
+	public final static long RUNTICKS = 0; // event engine stops at this tick, 0 is never
+	public final static long SEED = 2012; // for every random choice of the simulation
+	public final static boolean RECORD = false; // record the interrupts in RECORDFILE
+	public final static boolean REPLAY = false; // replay RECORDFILE (needs EVENTDRIVEN)
+	public final static String RECORDFILE = "interrupts.bin";
 	
 	//Disk
+	public final static int DISKSIZE = 4096;
 	public final static int minTurns = 10;
-	public final static int maxTurns = 30;
+	public final static int maxTurns = 30; // each request, without DISKGEOMETRY
+	public final static boolean DISKGEOMETRY = false; // time the requests by where the head goes
+	public final static int TRACKS = 64; // DISKSIZE words spread over TRACKS tracks of SECTORS sectors
+	public final static int SECTORS = 64;
+	public final static int SEEKMIN = 2; // ticks to the next track
+	public final static int SEEKMAX = 20; // ticks across the whole disk
+	public final static int ROTATION = 16; // ticks per turn, a sector passes in ROTATION/SECTORS
+	public final static String DISKSCHEDULER = "fifo"; // fifo, scan, clook or sstf
+	public final static int SSTFMAXBYPASS = 8; // requests sstf starts before the oldest one, at most
 	
 	//Kernel
+	public final static boolean TICKLESS = false; // one-shot timer per CPU for the slices, instead of a periodic Timer
 	public final static int minSlice = 10;
 	public final static int maxSlice = 10;
 	public final static int NINITIALPROCESSES = 0;
 	public final static int PROCSINITALPOS = 23;
+	public final static int MINBLOCK = 16; // smallest partition, in words
+	public final static int PROCDATASIZE = 16; // words for data after the program
+	public final static String SCHEDULER = "fifo"; // fifo, mlfq, cfs or lottery
+	public final static int MLFQLEVELS = 3; // each one with twice the slice of the one above
+	public final static int MLFQBOOST = 200; // timer ticks between priority boosts
+	public final static int CFSLATENCY = 40; // ticks in which every ready process should run
+	public final static int TICKETS = 100; // lottery tickets of each process
+	
+	//Paging
+	public final static boolean PAGING = false; // demand paged MMU instead of partitions
+	public final static int PAGESIZE = 16;
+	public final static int VPAGES = 16; // pages per process, 256 words is all an instruction can address
+	public final static int SWAPDISK = 1;
+	public final static int SWAPBASE = 1024; // swap area goes from here to the end of SWAPDISK
 	
 	//Interface
 	public final static int XVAR = 2;
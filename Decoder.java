@@ -0,0 +1,85 @@
+class Decoder
+{
+	// The decoder breaks a 32bit memory word into a compact opcode plus its
+	// two operands, so that the processor can dispatch with a single switch
+	// instead of comparing the letters of the instruction every time.
+	// A decoded instruction is packed in one int as (op<<16)|(a<<8)|b, and
+	// since no opcode is 0, a 0 in the decode cache means "not decoded yet".
+
+	public final static int OP_LM = 1;	// L M r m
+	public final static int OP_LC = 2;	// L C r c
+	public final static int OP_WM = 3;	// W M r m
+	public final static int OP_SU = 4;	// S U r1 r2
+	public final static int OP_AD = 5;	// A D r1 r2
+	public final static int OP_DEC = 6;	// D E C r1
+	public final static int OP_INC = 7;	// I N C r1
+	public final static int OP_CP = 8;	// C P r1 r2
+	public final static int OP_JPA = 9;	// J P A m
+	public final static int OP_JPZ = 10;	// J P Z m
+	public final static int OP_JPE = 11;	// J P E m
+	public final static int OP_JPL = 12;	// J P L m
+	public final static int OP_INT = 13;	// I N T n
+	public final static int OP_ILLEGAL = 14;	// ? ? ? ?
+	public final static int OP_HLT = 15;	// H L T
+
+	// Used only for logging
+	public final static String[] MNEMONICS = {
+		"", " [L M r m] ", " [L C r c] ", " [W M r m] ", " [S U r1 r2] ",
+		" [A D r1 r2] ", " [D E C r1] ", " [I N C r1] ", " [C P r1 r2] ",
+		" [J P A m] ", " [J P Z m] ", " [J P E m] ", " [J P L m] ",
+		" [I N T n] ", " [? ? ? ?] ", " [H L T] " };
+
+	public static int decode(int word)
+	{
+		int b0 = word>>>24;
+		int b1 = (word>>>16) & 255;
+		int b2 = (word>>>8) & 255;
+		int b3 = word & 255;
+		int op = OP_ILLEGAL;
+
+		switch(b0)
+		{
+			case 'L':
+				if(b1=='M') op = OP_LM;
+				else if(b1=='C') op = OP_LC;
+				break;
+			case 'W':
+				if(b1=='M') op = OP_WM;
+				break;
+			case 'S':
+				if(b1=='U') op = OP_SU;
+				break;
+			case 'A':
+				if(b1=='D') op = OP_AD;
+				break;
+			case 'D':
+				if(b1=='E' && b2=='C') op = OP_DEC;
+				break;
+			case 'I':
+				if(b1=='N' && b2=='C') op = OP_INC;
+				else if(b1=='N' && b2=='T') op = OP_INT;
+				break;
+			case 'C':
+				if(b1=='P') op = OP_CP;
+				break;
+			case 'H':
+				if(b1=='L' && b2=='T') op = OP_HLT;
+				break;
+			case 'J':
+				if(b1=='P')
+				{
+					if(b2=='A') op = OP_JPA;
+					else if(b2=='Z') op = OP_JPZ;
+					else if(b2=='E') op = OP_JPE;
+					else if(b2=='L') op = OP_JPL;
+				}
+				break;
+		}
+
+		return (op<<16) | (b2<<8) | b3;
+	}
+
+	public static int op(int decoded) { return decoded>>>16; }
+	public static int a(int decoded) { return (decoded>>>8) & 255; }
+	public static int b(int decoded) { return decoded & 255; }
+}
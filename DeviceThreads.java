@@ -0,0 +1,57 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class DeviceThreads
+{
+	// Starts the threads of the simulated hardware: CPUs, disks, timer,
+	// console and clock. With Config.VIRTUALTHREADS they are virtual threads,
+	// so hundreds of CPUs and disks don't need hundreds of platform threads.
+	// All the waiting they do is in the GlobalSynch and the Semaphore, which
+	// use java.util.concurrent locks, so a waiting device gives its carrier
+	// thread back. Virtual threads are looked up by reflection: on a JVM that
+	// doesn't have them the devices get platform threads, as before.
+
+	private static Method startVirtual;
+	private static boolean checked = false;
+	private static AtomicInteger started = new AtomicInteger();
+
+	synchronized private static Method getStartVirtual()
+	{
+		if (!checked)
+		{
+			checked = true;
+			try {
+				startVirtual = Thread.class.getMethod("startVirtualThread", Runnable.class);
+			} catch (NoSuchMethodException e) {
+				System.out.println("This JVM has no virtual threads, the devices use platform threads.");
+			}
+		}
+		return startVirtual;
+	}
+
+	public static boolean isVirtual()
+	{
+		return Config.VIRTUALTHREADS && getStartVirtual() != null;
+	}
+
+	public static Thread start(Runnable r, String name)
+	{
+		started.incrementAndGet();
+		if (isVirtual())
+		{
+			try {
+				Thread t = (Thread) getStartVirtual().invoke(null, r);
+				t.setName(name);
+				return t;
+			} catch (Exception e) {
+				System.out.println("Couldn't start a virtual thread for " + name + ": " + e);
+			}
+		}
+		Thread t = new Thread(r, name);
+		t.start();
+		return t;
+	}
+
+	// Devices started so far
+	public static int getStarted() { return started.get(); }
+}
@@ -1,6 +1,7 @@
 import java.io.*;
+import java.util.Random;
 
-class Disk extends Thread
+class Disk implements Runnable
 {
 	// Our disc component has a semaphore to implement it's dependency on
 	// a processor's call. The semaphore is private, and we offer 
@@ -13,10 +14,38 @@ class Disk extends Thread
 	private int[] diskImage;
 	private int diskSize;
 	private int id;
+	private Random random; // for the turns, seeded
+	private EventScheduler scheduler; // null when the disk is a thread
+	private EventScheduler.Event completion;
+	private int dev; // the thread's deadlines, see GlobalSynch
+	private long started; // tick of the request given to the thread
+	private boolean pending; // given and not taken yet
+
+	// Geometry (Config.DISKGEOMETRY): the words are laid out in
+	// Config.TRACKS tracks of Config.SECTORS sectors, and each request
+	// takes the time to move the head to its track (seek), to wait for its
+	// first sector to turn under the head (rotation) and to read or write
+	// its sectors (transfer), in clock ticks. Seeks take Config.SEEKMIN to
+	// the next track and Config.SEEKMAX across the disk, growing as the
+	// square root of the distance between, as the arm speeds up and then
+	// brakes. The disk turns all the time, once every Config.ROTATION ticks,
+	// so where a sector is depends on the clock; a transfer reads
+	// SECTORS/ROTATION sectors per tick, plus a track-to-track seek for each
+	// track it crosses.
+	private int wordsPerSector;
+	private int track; // where the head is
+	private double seekTime; // of the last request
+	private double rotationTime;
+	private double transferTime;
+	private long requests;
+	private double seekTotal;
+	private double rotationTotal;
+	private double transferTotal;
 
 	// Disk interface registers
 	private int address;
 	private int writeData;
+	private int[] writeBlock;
 	private int[] readData;
 	private int readSize;
 	private int operation;
@@ -27,6 +56,10 @@ class Disk extends Thread
 	public final static int OPERATION_READ = 0;
 	public final static int OPERATION_WRITE = 1;
 	public final static int OPERATION_LOAD = 2;
+	public final static int OPERATION_READ_PAGE = 3;
+	public final static int OPERATION_WRITE_PAGE = 4;
+	public final static int OPERATION_READ_BLOCK = 5;
+	public final static int OPERATION_WRITE_BLOCK = 6;
 	public final static int ERRORCODE_SUCCESS = 0;
 	public final static int ERRORCODE_SOMETHING_WRONG = 1;
 	public final static int ERRORCODE_ADDRESS_OUT_OF_RANGE = 2;
@@ -35,9 +68,10 @@ class Disk extends Thread
 	public final static int END_OF_FILE = 0xFFFFFFFF;
 
 	// Constructor
-	public Disk(int n, IntController i, GlobalSynch gs, int s, String name)
+	public Disk(int n, IntController i, GlobalSynch gs, int s, String name, Random r)
 	{
 		id = n;
+		random = r;
 		hint = i;
 		synch = gs;
 		sem = new Semaphore(0);
@@ -47,18 +81,56 @@ class Disk extends Thread
 		diskImage = new int[s];
 		readData = new int[BUFFER_SIZE];
 		readSize = 0;
+		dev = gs.addDevice();
+		wordsPerSector = Math.max(1, (s + Config.TRACKS*Config.SECTORS - 1) / (Config.TRACKS*Config.SECTORS));
 	}
 
 	// Methods that the kernel (in CPU) should call: "roda" activates the disk
 	// The last parameter, data, is only for the 'write' operation
 	public void roda(int op, int add, int data)
+	{
+		roda(op, add, data, null);
+	}
+	
+	// The page operations move Config.PAGESIZE words at once: 'read page'
+	// leaves them in the read buffer, and 'write page' takes them from block.
+	// 'read block' and 'write block' do the same as the page ones with data
+	// words (1 to BUFFER_SIZE).
+	public void roda(int op, int add, int data, int[] block)
 	{
 		address = add;
 		writeData = data;
+		writeBlock = block;
 		readSize = 0;
 		operation = op;
 		errorCode = ERRORCODE_SUCCESS;
-		sem.V();
+		if (scheduler != null)
+		{
+			int words = complete();
+			scheduler.schedule(latency(words, scheduler.getTime()), completion);
+		}
+		else
+		{
+			// the clock waits here until the thread has taken it
+			synchronized (this)
+			{
+				started = synch.wakeIn(dev, 0);
+				pending = true;
+			}
+			sem.V();
+		}
+	}
+	
+	// With the event engine the disk has no thread: each request is done at
+	// once, and its interrupt is an event after the time it takes. The
+	// image is loaded now.
+	public void setScheduler(EventScheduler es)
+	{
+		scheduler = es;
+		completion = new EventScheduler.Event() {
+			void fire() { interrupt(); }
+		};
+		try { load(fileName); } catch (IOException e){ System.err.println("Coudln't initialize disk " + id); }
 	}
 	
 	// After disk traps an interruption, kernel retrieve its results
@@ -66,6 +138,20 @@ class Disk extends Thread
 	public int getSize() { return readSize; }
 	public int getData(int buffer_position) { return readData[buffer_position]; }
 
+	// Time of the last request, in clock ticks
+	synchronized public double getSeekTime() { return seekTime; }
+	synchronized public double getRotationTime() { return rotationTime; }
+	synchronized public double getTransferTime() { return transferTime; }
+
+	synchronized public String getStats()
+	{
+		if (!Config.DISKGEOMETRY)
+			return "Disk " + id + ": random times of " + Config.minTurns + " to " + Config.maxTurns + " ticks";
+		return String.format("Disk %d: %d requests, head on track %d; seek %.2f, rotation %.2f, transfer %.2f average (in clock ticks)",
+			id, requests, track, requests == 0 ? 0 : seekTotal / requests,
+			requests == 0 ? 0 : rotationTotal / requests, requests == 0 ? 0 : transferTotal / requests);
+	}
+
 	// The thread that is the disk itself
 	public void run()
 	{
@@ -74,62 +160,158 @@ class Disk extends Thread
 		{
 			// wait for some request coming from the processor
 			sem.P();
+			long now;
+			synchronized (this)
+			{
+				pending = false;
+				now = started;
+			}
 			// Processor requested: now I have something to do!
+			int words = complete();
 			
-			// Do some turns to simulate a real disk
-			int turns = (int) (Config.minTurns + Math.random()*(Config.maxTurns-Config.minTurns));
-			for (int i=0; i < turns; ++i)
+			// Do some turns to simulate a real disk, to the tick
+			synch.sleepUntil(dev, now + latency(words, now));
+
+			interrupt();
+			// the clock may go on, unless the next request came already
+			synchronized (this)
 			{
-				synch.mysleep(1);
-				//System.err.println("disk made a turn");
+				if (!pending)
+					synch.setDeadline(dev, GlobalSynch.NONE);
 			}
+		}
+	}
+
+	// Ticks the request takes, that moved that many words from now on
+	private int latency(int words, long now)
+	{
+		if (!Config.DISKGEOMETRY)
+			return (int) (Config.minTurns + random.nextDouble()*(Config.maxTurns-Config.minTurns));
+
+		int sector = Math.max(0, Math.min(address, diskSize - 1)) / wordsPerSector;
+		int target = Math.min(sector / Config.SECTORS, Config.TRACKS - 1);
+		sector %= Config.SECTORS;
+		double sectorTime = (double) Config.ROTATION / Config.SECTORS;
+
+		int distance = Math.abs(target - track);
+		double seek = distance == 0 ? 0 : Config.SEEKMIN
+			+ (Config.SEEKMAX - Config.SEEKMIN) * Math.sqrt((distance - 1) / (double) Math.max(1, Config.TRACKS - 2));
 
-			if (address < 0 || address >= diskSize)
-				errorCode = ERRORCODE_ADDRESS_OUT_OF_RANGE;
-			else
+		// the sector under the head when the seek is over
+		double at = ((now + seek) % Config.ROTATION) / sectorTime;
+		double rotation = ((sector - at) % Config.SECTORS + Config.SECTORS) % Config.SECTORS * sectorTime;
+
+		int sectors = Math.max(1, (words + wordsPerSector - 1) / wordsPerSector);
+		int crossed = Math.min((sector + sectors - 1) / Config.SECTORS, Config.TRACKS - 1 - target);
+		double transfer = sectors * sectorTime + crossed * Config.SEEKMIN;
+
+		synchronized (this)
+		{
+			track = target + crossed;
+			seekTime = seek;
+			rotationTime = rotation;
+			transferTime = transfer;
+			++requests;
+			seekTotal += seek;
+			rotationTotal += rotation;
+			transferTotal += transfer;
+		}
+		return Math.max(1, (int) Math.ceil(seek + rotation + transfer));
+	}
+
+	// Does the operation requested, and returns how many words it moved
+	private int complete()
+	{
+		if (address < 0 || address >= diskSize)
+			errorCode = ERRORCODE_ADDRESS_OUT_OF_RANGE;
+		else if ((operation == OPERATION_READ_PAGE || operation == OPERATION_WRITE_PAGE)
+				&& address + Config.PAGESIZE > diskSize)
+			errorCode = ERRORCODE_ADDRESS_OUT_OF_RANGE;
+		else if ((operation == OPERATION_READ_BLOCK || operation == OPERATION_WRITE_BLOCK)
+				&& (writeData < 1 || writeData > BUFFER_SIZE || address + writeData > diskSize))
+			errorCode = ERRORCODE_ADDRESS_OUT_OF_RANGE;
+		else
+		{
+			errorCode = ERRORCODE_SUCCESS;
+
+			switch(operation)
 			{
-				errorCode = ERRORCODE_SUCCESS;
-
-				switch(operation)
-				{
-					case OPERATION_READ:
-						System.err.println("OPERATION_READ");
-						readSize = 1;
-						readData[0] = diskImage[address];
-						break;
-					case OPERATION_WRITE:
-						System.err.println("OPERATION_WRITE");
-						diskImage[address] = writeData;
-						break;
-					case OPERATION_LOAD:
-						System.err.println("OPERATION_LOAD");
-						int diskIndex = address;
-						int bufferIndex = 0;
-						while (diskImage[diskIndex] != END_OF_FILE)
+				case OPERATION_READ:
+					System.err.println("OPERATION_READ");
+					readSize = 1;
+					readData[0] = diskImage[address];
+					break;
+				case OPERATION_WRITE:
+					System.err.println("OPERATION_WRITE");
+					diskImage[address] = writeData;
+					break;
+				case OPERATION_READ_PAGE:
+					System.err.println("OPERATION_READ_PAGE");
+					for (int i = 0; i < Config.PAGESIZE; i++)
+						readData[i] = diskImage[address + i];
+					readSize = Config.PAGESIZE;
+					break;
+				case OPERATION_WRITE_PAGE:
+					System.err.println("OPERATION_WRITE_PAGE");
+					for (int i = 0; i < Config.PAGESIZE; i++)
+						diskImage[address + i] = writeBlock[i];
+					break;
+				case OPERATION_READ_BLOCK:
+					System.err.println("OPERATION_READ_BLOCK");
+					for (int i = 0; i < writeData; i++)
+						readData[i] = diskImage[address + i];
+					readSize = writeData;
+					break;
+				case OPERATION_WRITE_BLOCK:
+					System.err.println("OPERATION_WRITE_BLOCK");
+					for (int i = 0; i < writeData; i++)
+						diskImage[address + i] = writeBlock[i];
+					break;
+				case OPERATION_LOAD:
+					System.err.println("OPERATION_LOAD");
+					int diskIndex = address;
+					int bufferIndex = 0;
+					while (diskImage[diskIndex] != END_OF_FILE)
+					{
+						System.err.println(".");
+						readData[bufferIndex] = diskImage[diskIndex];
+						++diskIndex;
+						++bufferIndex;
+						if (bufferIndex >= BUFFER_SIZE || diskIndex >= diskSize)
 						{
-							System.err.println(".");
-							readData[bufferIndex] = diskImage[diskIndex];
-							++diskIndex;
-							++bufferIndex;
-							if (bufferIndex >= BUFFER_SIZE || diskIndex >= diskSize)
-							{
-								errorCode = ERRORCODE_MISSING_EOF;
-								break;
-							}
+							errorCode = ERRORCODE_MISSING_EOF;
+							break;
 						}
-						readSize = bufferIndex;
-						break;
-				}
-			}		
-
-			// generate the interrupt
-			if(id==0)
-				hint.set(5);
-			else
-				hint.set(6);
+					}
+					readSize = bufferIndex;
+					break;
+			}
+		}		
+
+		switch (operation)
+		{
+			case OPERATION_READ_PAGE:
+			case OPERATION_WRITE_PAGE:
+				return Config.PAGESIZE;
+			case OPERATION_READ_BLOCK:
+			case OPERATION_WRITE_BLOCK:
+				return Math.max(1, Math.min(writeData, BUFFER_SIZE));
+			case OPERATION_LOAD:
+				return readSize + 1; // and the end of file
+			default:
+				return 1;
 		}
 	}
 
+	// The request is over
+	private void interrupt()
+	{
+		if(id==0)
+			hint.set(5);
+		else
+			hint.set(6);
+	}
+
 	// this is to read disk initial image from a hosted text file
 	private void load(String filename) throws IOException
 	{
@@ -0,0 +1,278 @@
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.TreeSet;
+
+abstract class DiskScheduler
+{
+	// The requests waiting for one disk, served in the order of the policy
+	// chosen with Config.DISKSCHEDULER: in arrival order (fifo), sweeping
+	// the addresses up and down (scan), only up and then back to the lowest
+	// one (clook), or the nearest to the last one first (sstf, that serves
+	// the oldest one once Config.SSTFMAXBYPASS others went before it).
+	//
+	// The sweeps serve the requests that were waiting when they began, and
+	// the ones that come meanwhile wait for the next sweep; otherwise a
+	// process reading a file word by word just ahead of the head would keep
+	// it there, and the others would starve.
+	//
+	// Requests for the same address are always served in arrival order,
+	// and a read of file words waits out of the policy until the block
+	// writes queued before it are done, whatever addresses they have; so a
+	// GET after a PUT reads what was written.
+	//
+	// The kernel calls it with its lock held, and tells it when a request
+	// is queued, started and done, so it can count the queue depth and the
+	// wait, service and seek distance of the requests. Times are in timer
+	// ticks, seeks in words.
+
+	private String name;
+	protected int head; // address of the last request started
+	protected long dispatched; // requests started so far
+	private long seq;
+	private int size;
+	private TreeSet<Long> writing = new TreeSet<Long>(); // block writes not done yet
+	private LinkedList<Kernel.DiskRequest> held = new LinkedList<Kernel.DiskRequest>(); // reads after them
+	private Kernel.DiskRequest probe = new Kernel.DiskRequest(0, 0, 0, 0, null, null); // to search the queues
+
+	// Statistics
+	private long queued;
+	private long depthTotal; // queue depth each request found
+	private int maxDepth;
+	private long done;
+	private long waitTotal;
+	private long serviceTotal;
+	private long maxService;
+	private long seekTotal;
+	private long heldTotal;
+
+	// Requests for the same address go in arrival order
+	protected final static Comparator<Kernel.DiskRequest> BYADDRESS = (a, b) -> {
+		if (a.add != b.add)
+			return a.add < b.add ? -1 : 1;
+		return Long.compare(a.seq, b.seq);
+	};
+
+	public static DiskScheduler create(String name, int disk)
+	{
+		DiskScheduler s;
+		if (name.equals("scan"))
+			s = new ScanDiskScheduler();
+		else if (name.equals("clook"))
+			s = new CLookDiskScheduler();
+		else if (name.equals("sstf"))
+			s = new SstfDiskScheduler();
+		else
+		{
+			if (!name.equals("fifo"))
+				System.out.println("Unknown disk scheduler " + name + ", using fifo.");
+			s = new FifoDiskScheduler();
+		}
+		s.name = "Disk " + disk + " (" + s.getName() + ")";
+		return s;
+	}
+
+	// The policy itself
+	abstract String getName();
+	abstract void add(Kernel.DiskRequest r);
+	abstract Kernel.DiskRequest pick(); // takes the next one out, null if none
+
+	// The oldest request at the nearest address at or above a (at or
+	// below, if down), null if there is none
+	protected Kernel.DiskRequest next(TreeSet<Kernel.DiskRequest> set, int a, boolean down)
+	{
+		probe.add = a;
+		probe.seq = down ? Long.MAX_VALUE : -1;
+		Kernel.DiskRequest r = down ? set.floor(probe) : set.ceiling(probe);
+		if (r == null || !down)
+			return r;
+		probe.add = r.add;
+		probe.seq = -1;
+		return set.ceiling(probe);
+	}
+
+	// The head moves without serving anything, as SCAN to the end
+	protected void seekTo(int a)
+	{
+		seekTotal += Math.abs(a - head);
+		head = a;
+	}
+
+	public boolean isEmpty() { return size == 0; }
+
+	public void queued(Kernel.DiskRequest r, long now)
+	{
+		r.seq = seq++;
+		r.queued = now;
+		r.bypassBase = dispatched;
+		depthTotal += size;
+		++queued;
+		if (r.op == Disk.OPERATION_WRITE_BLOCK)
+			writing.add(r.seq);
+		if ((r.op == Disk.OPERATION_READ || r.op == Disk.OPERATION_READ_BLOCK) && !writing.isEmpty())
+		{
+			held.addLast(r);
+			++heldTotal;
+		}
+		else
+			add(r);
+		++size;
+		maxDepth = Math.max(maxDepth, size);
+	}
+
+	// The request the disk starts now, null if there is none
+	public Kernel.DiskRequest next(long now)
+	{
+		Kernel.DiskRequest r = pick();
+		if (r == null)
+			return null;
+		--size;
+		++dispatched;
+		seekTo(r.add);
+		r.started = now;
+		waitTotal += now - r.queued;
+		return r;
+	}
+
+	public void done(Kernel.DiskRequest r, long now)
+	{
+		long t = now - r.started;
+		++done;
+		serviceTotal += t;
+		maxService = Math.max(maxService, t);
+		
+		if (r.op != Disk.OPERATION_WRITE_BLOCK)
+			return;
+		writing.remove(r.seq);
+		while (!held.isEmpty() && (writing.isEmpty() || writing.first() > held.getFirst().seq))
+			add(held.removeFirst());
+	}
+
+	public String getStats()
+	{
+		return name + ": " + size + " waiting, " + maxDepth + " at most, depth "
+			+ (queued == 0 ? 0 : (double) depthTotal / queued) + " average on arrival; " + done
+			+ " done, wait " + (dispatched == 0 ? 0 : waitTotal / dispatched) + " average, service "
+			+ (done == 0 ? 0 : (double) serviceTotal / done) + " average, " + maxService
+			+ " maximum (in timer ticks); seek " + (dispatched == 0 ? 0 : seekTotal / dispatched) + " words average; "
+			+ heldTotal + " reads waited for writes";
+	}
+}
+
+class FifoDiskScheduler extends DiskScheduler
+{
+	// The original order: as the requests come
+	private LinkedList<Kernel.DiskRequest> queue = new LinkedList<Kernel.DiskRequest>();
+
+	String getName() { return "fifo"; }
+	void add(Kernel.DiskRequest r) { queue.addLast(r); }
+	Kernel.DiskRequest pick() { return queue.pollFirst(); }
+}
+
+class ScanDiskScheduler extends DiskScheduler
+{
+	// The elevator: the head sweeps the addresses up to the end of the
+	// disk and then down to 0, serving the requests it passes by. A request
+	// waits at most two sweeps.
+	private TreeSet<Kernel.DiskRequest> queue = new TreeSet<Kernel.DiskRequest>(BYADDRESS);
+	private TreeSet<Kernel.DiskRequest> later = new TreeSet<Kernel.DiskRequest>(BYADDRESS);
+	private boolean down;
+
+	String getName() { return "scan"; }
+	void add(Kernel.DiskRequest r) { later.add(r); }
+
+	Kernel.DiskRequest pick()
+	{
+		if (queue.isEmpty())
+		{
+			TreeSet<Kernel.DiskRequest> t = queue;
+			queue = later;
+			later = t;
+		}
+		if (queue.isEmpty())
+			return null;
+		Kernel.DiskRequest r = next(queue, head, down);
+		if (r == null)
+		{
+			// to the end, and back
+			seekTo(down ? 0 : Config.DISKSIZE - 1);
+			down = !down;
+			r = next(queue, head, down);
+		}
+		queue.remove(r);
+		return r;
+	}
+}
+
+class CLookDiskScheduler extends DiskScheduler
+{
+	// Circular LOOK: the head serves the requests going up only, and after
+	// the highest one goes back to the lowest one. A request waits at most
+	// two sweeps, the ones at the ends as much as the ones in the middle.
+	private TreeSet<Kernel.DiskRequest> queue = new TreeSet<Kernel.DiskRequest>(BYADDRESS);
+	private TreeSet<Kernel.DiskRequest> later = new TreeSet<Kernel.DiskRequest>(BYADDRESS);
+
+	String getName() { return "clook"; }
+	void add(Kernel.DiskRequest r) { later.add(r); }
+
+	Kernel.DiskRequest pick()
+	{
+		if (queue.isEmpty())
+		{
+			TreeSet<Kernel.DiskRequest> t = queue;
+			queue = later;
+			later = t;
+		}
+		if (queue.isEmpty())
+			return null;
+		Kernel.DiskRequest r = next(queue, head, false);
+		if (r == null)
+			r = queue.first();
+		queue.remove(r);
+		return r;
+	}
+}
+
+class SstfDiskScheduler extends DiskScheduler
+{
+	// Shortest seek first: the request nearest to the head goes next, which
+	// gives the shortest seeks, but can leave the far ones waiting for as
+	// long as near ones keep coming. So the oldest request goes first once
+	// Config.SSTFMAXBYPASS others were started since it came.
+	private TreeSet<Kernel.DiskRequest> queue = new TreeSet<Kernel.DiskRequest>(BYADDRESS);
+	private TreeSet<Kernel.DiskRequest> arrivals = new TreeSet<Kernel.DiskRequest>((a, b) -> Long.compare(a.seq, b.seq));
+	private long aged;
+
+	String getName() { return "sstf"; }
+
+	void add(Kernel.DiskRequest r)
+	{
+		queue.add(r);
+		arrivals.add(r);
+	}
+
+	Kernel.DiskRequest pick()
+	{
+		if (queue.isEmpty())
+			return null;
+		Kernel.DiskRequest r = arrivals.first();
+		if (dispatched - r.bypassBase < Config.SSTFMAXBYPASS)
+		{
+			Kernel.DiskRequest up = next(queue, head, false);
+			Kernel.DiskRequest down = next(queue, head, true);
+			if (up == null || (down != null && head - down.add < up.add - head))
+				r = down;
+			else
+				r = up;
+		}
+		else
+			++aged;
+		queue.remove(r);
+		arrivals.remove(r);
+		return r;
+	}
+
+	public String getStats()
+	{
+		return super.getStats() + ", " + aged + " served for their age";
+	}
+}
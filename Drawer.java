@@ -67,8 +67,8 @@ public class Drawer
     public static void removeFromList(int PID, String name){
     	Queue<Integer> listaux = lists.get(name);
     	
-		if( !listaux.isEmpty() )
-			listaux.poll();
+		// the scheduler may take them out of order
+		listaux.remove(PID);
 	}
     
     public static void addList(String name){
@@ -80,7 +80,8 @@ public class Drawer
     	da.tick();
     }
     
-    public static void drawEvent(int event, int cpu)
+    // the CPUs call it without the kernel's lock
+    synchronized public static void drawEvent(int event, int cpu)
     {
     	da.drawEvent(event, cpu);
     }
@@ -0,0 +1,144 @@
+import java.util.PriorityQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+class EventScheduler extends Thread
+{
+	// Discrete event engine, used instead of a thread per device when
+	// Config.EVENTDRIVEN is on. A single thread keeps a queue of events
+	// ordered by virtual time, and executes them one after the other: CPU
+	// steps, timer ticks and disk completions. Events at the same tick run
+	// in the order they were scheduled, so a run doesn't depend on how the
+	// host schedules threads, and there are no context switches at all.
+	//
+	// The clock is still the GlobalSynch: before going to a later tick the
+	// engine waits for it, so Pause, Next Step and the normal speed work as
+	// with the threads. In turbo mode it just moves the clock forward.
+	//
+	// The kernel doesn't know about any of this: it is called by the CPUs
+	// and drives the disks exactly as before.
+
+	static abstract class Event implements Comparable<Event>
+	{
+		private long time;
+		private long seq;
+
+		abstract void fire();
+
+		public int compareTo(Event e)
+		{
+			if (time != e.time)
+				return time < e.time ? -1 : 1;
+			return seq < e.seq ? -1 : (seq == e.seq ? 0 : 1);
+		}
+	}
+
+	private GlobalSynch synch;
+	private PriorityQueue<Event> queue;
+	private LinkedBlockingQueue<Event> inbox; // posted by other threads
+	private long now;
+	private long seq;
+	private long events; // fired so far
+	private IntRecorder replay; // types the recorded console lines
+
+	public EventScheduler(GlobalSynch gs)
+	{
+		synch = gs;
+		queue = new PriorityQueue<Event>();
+		inbox = new LinkedBlockingQueue<Event>();
+		now = 0;
+		seq = 0;
+	}
+
+	public long getTime() { return now; }
+	public long getEvents() { return events; }
+	public void setReplay(IntRecorder r) { replay = r; }
+
+	// Only called from the engine thread (that is, by the events themselves)
+	public void schedule(long delay, Event e)
+	{
+		e.time = now + delay;
+		e.seq = seq++;
+		queue.add(e);
+	}
+
+	// Called from outside, like the console: the event runs at the current
+	// tick, as soon as the event being executed is over
+	public void post(Event e)
+	{
+		inbox.add(e);
+	}
+
+	// The CPUs run their first instruction after paying for it, as they do
+	// with the threads, and then as many turns as they executed. A halted
+	// CPU has no events until an interrupt comes for it, and then it pays
+	// for a turn again; the interrupts are all raised by events, so that is
+	// on this thread too.
+	public void addProcessor(final Processor p)
+	{
+		final Event step = new Event() {
+			void fire() {
+				int n = p.step();
+				if (!p.isHalted())
+					schedule(2 * Math.max(n, 1), this);
+			}
+		};
+		p.setWaker(() -> schedule(2, step));
+		schedule(2, step);
+	}
+
+	public void addTimer(final IntController hint)
+	{
+		schedule(2, new Event() {
+			void fire() {
+				hint.set(2);
+				schedule(2, this);
+			}
+		});
+	}
+
+	public void run()
+	{
+		while (true)
+		{
+			Event e;
+			while ((e = inbox.poll()) != null)
+				schedule(0, e);
+			
+			if (replay != null && replay.hasInput(events + 1))
+			{
+				++events;
+				replay.typeInput();
+				continue;
+			}
+
+			e = queue.poll();
+			if (e == null)
+			{
+				// Every CPU is halted and no device is busy (there is no
+				// periodic timer in tickless mode): only the console can
+				// bring something to do
+				if (Config.RUNTICKS > 0)
+				{
+					System.out.println("Simulation ended at tick " + now + " after " + events + " events: nothing left to run.");
+					System.exit(0);
+				}
+				try {
+					schedule(0, inbox.take());
+				} catch (InterruptedException ie) {}
+				continue;
+			}
+			if (e.time > now)
+			{
+				if (Config.RUNTICKS > 0 && e.time > Config.RUNTICKS)
+				{
+					System.out.println("Simulation ended at tick " + now + " after " + events + " events.");
+					System.exit(0);
+				}
+				synch.waitUntil(e.time);
+				now = e.time;
+			}
+			++events;
+			e.fire();
+		}
+	}
+}
@@ -9,6 +9,22 @@ class FileDescriptor
 	private int pos;
 	private int id;
 	
+	// Read ahead for GET: the words of the file from bufferStart on, as
+	// they were on the disk when it had done 'version' file writes (see
+	// Kernel.fileWrites). Any write done since may have changed them, so
+	// then they are read again.
+	private int[] buffer;
+	private int bufferStart;
+	private int bufferCount;
+	private long version;
+	
+	// PUTs not on the disk yet: the words of the file from writeStart on.
+	// They go with one 'write block' once there are BUFFER_SIZE of them, or
+	// before the disk reads a file (see Kernel.flushFile).
+	private int[] writes;
+	private int writeStart;
+	private int writeCount;
+	
 	public final static int FILEMODE_W = 0;
 	public final static int FILEMODE_R = 1;
 	
@@ -29,9 +45,67 @@ class FileDescriptor
 	public int getPos() { return pos; }
 	public int getSize() { return size; }
 	public int getAddress() { return address; }
+	public ProcessDescriptor getProcess() { return proc; }
 	
 	public void incPos() { ++pos; }
 	public void incSize() { ++size; }
 	
 	public void setSize(int s) { size = s; }
+	
+	public boolean isBuffered(long writes)
+	{
+		return version == writes && pos >= bufferStart && pos < bufferStart + bufferCount;
+	}
+	
+	public int getBuffered() { return buffer[pos - bufferStart]; }
+	
+	public int[] getBuffer()
+	{
+		if(buffer == null)
+			buffer = new int[Disk.BUFFER_SIZE];
+		return buffer;
+	}
+	
+	// A block came from the disk, read at pos after that many writes
+	public void setBuffered(int count, long writes)
+	{
+		bufferStart = pos;
+		bufferCount = count;
+		version = writes;
+	}
+	
+	// This file PUT data at pos: its next GETs see it before the disk does
+	public void putBuffered(int data, long writes)
+	{
+		if(isBuffered(writes))
+			buffer[pos - bufferStart] = data;
+	}
+	
+	// A PUT at pos goes with the ones kept if it comes right after them
+	public boolean canWrite()
+	{
+		return writeCount == 0 || (pos == writeStart + writeCount && writeCount < Disk.BUFFER_SIZE);
+	}
+	
+	public void write(int data)
+	{
+		if(writes == null)
+			writes = new int[Disk.BUFFER_SIZE];
+		if(writeCount == 0)
+			writeStart = pos;
+		writes[writeCount++] = data;
+	}
+	
+	public int getWriteCount() { return writeCount; }
+	public int getWriteAddress() { return address + writeStart; }
+	public boolean isWriteFull() { return writeCount == Disk.BUFFER_SIZE; }
+	
+	// The words kept, for the disk; the next PUTs start another block
+	public int[] takeWrites()
+	{
+		int[] w = writes;
+		writes = null;
+		writeCount = 0;
+		return w;
+	}
 }
\ No newline at end of file
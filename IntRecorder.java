@@ -0,0 +1,154 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+class IntRecorder
+{
+	// Records every interrupt raised through the IntController, with the
+	// virtual time it was raised: the tick and, with the event engine, the
+	// number of the event being executed (counting from 1), which tells
+	// where inside the tick it happened. Console lines are recorded along
+	// with their interrupt.
+	//
+	// With the random choices seeded (Config.SEED), the console is the only
+	// input from outside. So to replay a run we type the same lines right
+	// before the same events, and check that every interrupt happens again
+	// at the same time; the first one that doesn't is reported. This needs
+	// the event engine: with threads, the interleaving is chosen by the host
+	// and only the recording is useful.
+	//
+	// File layout: the seed, then for each interrupt the tick, the event
+	// (-1 with threads), the interrupt number and, for the console, the line.
+
+	private final static int CONSOLE = 15;
+
+	private GlobalSynch synch;
+	private EventScheduler scheduler; // null with threads
+	private ConsoleListener console;
+	private DataOutputStream out; // recording
+	private DataInputStream in; // replaying
+
+	// Console lines to type during the replay, and the events they go before
+	private ArrayList<Long> inputEvents;
+	private ArrayList<String> inputLines;
+	private int nextInput;
+
+	private long checked; // interrupts that matched the recording
+	private boolean done; // diverged or reached the end
+
+	public IntRecorder(GlobalSynch gs, EventScheduler es, ConsoleListener c)
+	{
+		synch = gs;
+		scheduler = es;
+		console = c;
+	}
+
+	public void record(String name) throws IOException
+	{
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(name)));
+		out.writeLong(Config.SEED);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				synchronized (IntRecorder.this) {
+					try { out.close(); } catch (IOException e) {}
+				}
+			}
+		});
+	}
+
+	// Reads the console lines ahead, and leaves the file open to compare
+	// the interrupts as they happen
+	public void replay(String name) throws IOException
+	{
+		inputEvents = new ArrayList<Long>();
+		inputLines = new ArrayList<String>();
+		DataInputStream pre = new DataInputStream(new BufferedInputStream(new FileInputStream(name)));
+		try {
+			if (pre.readLong() != Config.SEED)
+				System.out.println("Replay: the recording was made with another seed.");
+			while (true)
+			{
+				pre.readLong();
+				long event = pre.readLong();
+				if (pre.readInt() == CONSOLE)
+				{
+					inputEvents.add(event);
+					inputLines.add(pre.readUTF());
+				}
+			}
+		} catch (EOFException e) {
+		} finally {
+			pre.close();
+		}
+
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(name)));
+		in.readLong();
+	}
+
+
+	// Called by the IntController for each interrupt raised
+	synchronized public void interrupt(int n)
+	{
+		// the engine's clock, as the GlobalSynch may be ahead of it
+		long tick = scheduler == null ? synch.getTime() : scheduler.getTime();
+		long event = scheduler == null ? -1 : scheduler.getEvents();
+		if (out != null)
+		{
+			try {
+				out.writeLong(tick);
+				out.writeLong(event);
+				out.writeInt(n);
+				if (n == CONSOLE)
+					out.writeUTF(console.getLine());
+			} catch (IOException e) {
+				System.out.println("Couldn't write the interrupt recording.");
+				out = null;
+			}
+		}
+		if (in != null && !done)
+			check(tick, event, n);
+	}
+
+	private void check(long tick, long event, int n)
+	{
+		try {
+			long t = in.readLong();
+			long e = in.readLong();
+			int m = in.readInt();
+			if (m == CONSOLE)
+				in.readUTF();
+			if (t != tick || e != event || m != n)
+			{
+				System.out.println("Replay diverged after " + checked + " interrupts: expected int " + m
+					+ " at tick " + t + " (event " + e + "), got int " + n + " at tick " + tick + " (event " + event + ")");
+				done = true;
+				return;
+			}
+			++checked;
+		} catch (EOFException e) {
+			System.out.println("Replay: end of the recording, " + checked + " interrupts matched.");
+			done = true;
+		} catch (IOException e) {
+			System.out.println("Couldn't read the interrupt recording.");
+			done = true;
+		}
+	}
+
+	// Called by the event engine before each event: if a line was typed
+	// there, it is typed again, taking the place of that event
+	public boolean hasInput(long event)
+	{
+		return nextInput < inputEvents.size() && inputEvents.get(nextInput) == event;
+	}
+
+	public void typeInput()
+	{
+		console.typeLine(inputLines.get(nextInput++));
+	}
+}
@@ -2,8 +2,9 @@ import java.io.IOException;
 import java.io.StreamTokenizer;
 import java.io.StringReader;
 import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 class Kernel
 {
@@ -12,66 +13,96 @@ class Kernel
 	private Memory mem;
 	private ConsoleListener con;
 	private Timer tim;
+	private CpuTimers cpuTimers; // one-shot slice timers, null with the periodic Timer
 	private Disk[] disks;
 	private Processor[] procs;
 	
 	// Data used by the kernel
 	private int nextPid;
+	private ProcessTable procTable; // the live processes by PID
 	private ProcessList[] cpuLists;
-	private ProcessList readyList;
+	private RunQueues runQueues; // the ready processes of each CPU, see Config.SCHEDULER
+	private AtomicLongArray idleCpus; // bit set for each CPU running the dummy process
+	private TimingWheel sleepers; // in SLEEP or ALARM, by the tick they wake at
 	private ProcessList[] diskLists;
-	private int[] partitionList;
-	private int npartitions;
+	private BuddyAllocator allocator; // memory for the processes
 	private int ncpus;
+	private Random random; // seeded, see Config.SEED
 	
-	synchronized private ProcessList 	getCpuList(int cpu) { return cpuLists[cpu]; }
-	synchronized private ProcessList 	getReadyList() { return readyList; }
-	synchronized private ProcessList 	getDiskList(int cpu) { return diskLists[cpu]; }
-	synchronized private Disk 			getDisk(int d) { return disks[d]; }
-	synchronized private Processor 		getProcessor(int d) { return procs[d]; }
+	// These are set before the devices start, and the lists and run queues
+	// have their own locks. So a CPU switching processes (timer, reschedule,
+	// going to the disk) only takes the kernel's lock when it needs the
+	// memory or the disks, or, with paging, to dispatch a process.
+	private ProcessList 	getCpuList(int cpu) { return cpuLists[cpu]; }
+	private ProcessList 	getDiskList(int cpu) { return diskLists[cpu]; }
+	private Disk 			getDisk(int d) { return disks[d]; }
+	private Processor 		getProcessor(int d) { return procs[d]; }
 	
-	class DiskRequest
+	static class DiskRequest
 	{
 		public int disk;
 		public int op;
 		public int add;
 		public int data;
+		public int[] block;
+		public ProcessDescriptor proc; // waiting for it, null for the kernel's own
+		public long seq; // these are kept by the DiskScheduler
+		public long queued;
+		public long started;
+		public long bypassBase;
 		
-		public DiskRequest(int whichdisk, int operation, int address, int wdata)
+		public DiskRequest(int whichdisk, int operation, int address, int wdata,
+				int[] wblock, ProcessDescriptor p)
 		{
 			disk = whichdisk;
 			op = operation;
 			add = address;
 			data = wdata;
+			block = wblock;
+			proc = p;
 		}
 	}
-	private ArrayList< Queue<DiskRequest> > diskReqs;
+	private DiskScheduler[] diskQueues; // see Config.DISKSCHEDULER
+	private DiskRequest[] diskCurrent; // request each disk is working on
+	private AtomicLongArray fileWrites; // blocks of PUTs written on each disk, for the GET buffers
+	private ArrayList<FileDescriptor> dirtyFiles; // with PUTs not written yet
 	
+	// Paging: who is in each frame, and which swap slots are used
+	private ProcessDescriptor[] frameOwner;
+	private int[] framePage;
+	private boolean[] frameBusy; // waiting for its page to come from disk
+	private int nframes;
+	private int clockHand;
+	private boolean[] swapUsed;
 	
-	private final int PART_SISOP=0;
-	private final int PART_USED=1;
-	private final int PART_FREE=2;
 	
 	// In the constructor goes initialization code
 	public Kernel(IntController hi, Memory m, ConsoleListener c, 
-			Timer t, Disk d1, Disk d2, int ncps, int nparts)
+			Timer t, Disk d1, Disk d2, int ncps, Random r)
 	{
 		hint = hi;
 		mem = m;
 		con = c;
 		tim = t;
 		nextPid = 1;
+		procTable = new ProcessTable();
 		ncpus = ncps;
-		npartitions = nparts;
+		random = r;
 		
 		disks = new Disk[2];
 		disks[0] = d1;
 		disks[1] = d2;
-		diskReqs = new ArrayList<Queue<DiskRequest>>();
-		diskReqs.add( new LinkedList<DiskRequest>() );
-		diskReqs.add( new LinkedList<DiskRequest>() );
+		diskQueues = new DiskScheduler[2];
+		diskQueues[0] = DiskScheduler.create(Config.DISKSCHEDULER, 0);
+		diskQueues[1] = DiskScheduler.create(Config.DISKSCHEDULER, 1);
+		diskCurrent = new DiskRequest[2];
+		fileWrites = new AtomicLongArray(2);
+		dirtyFiles = new ArrayList<FileDescriptor>();
 		
-		readyList = new ProcessList ("Ready");
+		runQueues = new RunQueues(Config.SCHEDULER, random, ncpus);
+		
+		idleCpus = new AtomicLongArray((ncpus + 63) / 64);
+		sleepers = new TimingWheel(0);
 		
 		cpuLists = new ProcessList[ncpus];
 		for(int i=0; i<ncpus; i++)
@@ -81,10 +112,27 @@ class Kernel
 		diskLists[0] = new ProcessList ("Disk 0");
 		diskLists[1] = new ProcessList ("Disk 1");
 		
-		partitionList = new int[npartitions];
-		partitionList[0] = partitionList[1] = PART_SISOP;
-		for(int it=2; it<npartitions; it++)
-			partitionList[it] = PART_FREE;
+		// The first two partitions are for the system. All memory after them
+		// is split in variable size partitions, or in frames in paged mode.
+		if(!Config.PAGING)
+			allocator = new BuddyAllocator(2*mem.getPartitionSize(), mem.getSize() - 2*mem.getPartitionSize());
+		else
+		{
+			mem.initFrames(2*mem.getPartitionSize());
+			nframes = mem.getFramesNumber();
+			frameOwner = new ProcessDescriptor[nframes];
+			framePage = new int[nframes];
+			frameBusy = new boolean[nframes];
+			clockHand = 0;
+			swapUsed = new boolean[(Config.DISKSIZE - Config.SWAPBASE) / Config.PAGESIZE];
+		}
+	}
+	
+	// Tickless mode, see CpuTimers: set before init
+	public void setCpuTimers(CpuTimers t)
+	{
+		cpuTimers = t;
+		runQueues.setTimers(t);
 	}
 	
 	public void init(Processor[] ps)
@@ -104,74 +152,359 @@ class Kernel
 		
 		for(int i=0; i<count; i++)
 		{
-			disk = (int) (Math.random()*2);
+			disk = random.nextInt(2);
 			paux = createProcess();
 			if(paux!=null)
 			{
 				getDiskList(disk).pushBack(paux);					
-				queueDiskRequest(disk, Disk.OPERATION_LOAD, initPos, 0);
+				queueDiskRequest(disk, Disk.OPERATION_LOAD, initPos, 0, null, paux);
 			}
 		}
 	}
 	
 	public ProcessDescriptor createDummyProcess()
 	{
-		return new ProcessDescriptor(0, 0, false);	
+		return new ProcessDescriptor(0, 0, mem.getPartitionSize(), false);	
 	}
 	
-	private int findFreePartition()
+	// The process gets its memory only when it is loaded and its size is
+	// known (or page by page, in paged mode)
+	public ProcessDescriptor createProcess()
 	{
-		for(int i=2; i<npartitions; i++)
-			if(partitionList[i]==PART_FREE)
-				return i;
-		
-		return -1;
+		ProcessDescriptor newProc = new ProcessDescriptor(nextPid++, -1, 0, true);
+		if(Config.PAGING)
+			newProc.initPages(Config.VPAGES);
+		runQueues.created(newProc);
+		procTable.put(newProc);
+		return newProc;
 	}
 	
-	public ProcessDescriptor createProcess()
+	public void runProcess(ProcessDescriptor p, int procId)
 	{
-		int part = findFreePartition();
-		if(part==-1)
+		p = notKilled(p, procId);
+		if(p==null)
+		{
+			// Going idle: the CPU shows it is before it looks at the queues
+			// once more, so a process queued meanwhile is either found now
+			// or its wakeIdleCpu sees this CPU idle and sends it an IPI
+			setIdle(procId, true);
+			p = notKilled(runQueues.next(procId), procId);
+		}
+		if(p==null)
+			p = createDummyProcess();
+		
+		// Paged, the frames of a process not running may be taken (see
+		// findFrame), so it starts running under the kernel's lock: a page
+		// is evicted either before, and then it faults, or not at all
+		if(Config.PAGING)
 		{
-			System.out.println("Error creating new process: no memory available.");
-			return null;
-		}			
+			synchronized(this)
+			{
+				dispatch(p, procId);
+			}
+		}
 		else
+			dispatch(p, procId);
+	}
+	
+	// Skips the ones killed from the console while on their way here
+	private ProcessDescriptor notKilled(ProcessDescriptor p, int procId)
+	{
+		while(p!=null && p.isKilled())
 		{
-			ProcessDescriptor newProc = new ProcessDescriptor(nextPid++, part, true);
-			partitionList[part] = PART_USED;
-			
-			return newProc;
+			killProcess(p);
+			p = runQueues.next(procId);
 		}
+		return p;
 	}
 	
-	public void runProcess(ProcessDescriptor p, int procId)
+	private void dispatch(ProcessDescriptor p, int procId)
 	{
-		if(p==null)
-			p = createDummyProcess();
+		setIdle(procId, p.getPID()==0);
 		
 		//System.err.println("Sending to execute process " + p.getPID() + " with PC: " + p.getPC());
 		getProcessor(procId).setPC( p.getPC() );
 		getProcessor(procId).setReg( p.getReg() );
-		getProcessor(procId).getMMU().setBaseRegister( p.getPartition() * mem.getPartitionSize() );
-		getProcessor(procId).getMMU().setLimitRegister( p.getPartition() * mem.getPartitionSize() + mem.getPartitionSize() - 1 );
-		p.setTime((int) (Config.minSlice + Math.random()*(Config.maxSlice-Config.minSlice))); //set some random slice time
+		getProcessor(procId).setPid( p.getPID() );
+		getProcessor(procId).getMMU().setPageTable( p.getPageTable() );
+		if(p.getPageTable()!=null)
+			getProcessor(procId).getMMU().setLimitRegister( p.getPageTable().length * Config.PAGESIZE );
+		else
+		{
+			getProcessor(procId).getMMU().setBaseRegister( p.getBase() );
+			getProcessor(procId).getMMU().setLimitRegister( p.getMemSize() );
+		}
+		p.setTime( runQueues.slice(p, procId) );
+		if(cpuTimers!=null)
+		{
+			// an idle CPU needs no timer: a process for it comes with an IPI
+			if(p.getPID()==0)
+				cpuTimers.cancel(procId);
+			else
+				cpuTimers.arm(procId, p.getTime());
+		}
 		
 		getCpuList(procId).pushBack(p);
 	}
 	
+	private void setIdle(int cpu, final boolean idle)
+	{
+		final long bit = 1L << (cpu & 63);
+		idleCpus.getAndUpdate(cpu >> 6, v -> idle ? v | bit : v & ~bit);
+	}
+	
+	// Takes the CPU out of the idle ones, false if it wasn't there
+	private boolean claimIdle(int cpu)
+	{
+		final long bit = 1L << (cpu & 63);
+		return (idleCpus.getAndUpdate(cpu >> 6, v -> v & ~bit) & bit) != 0;
+	}
+	
+	// A process became ready in the queue of CPU q. If some CPU is idle (q
+	// itself, if it is) it takes the process now, instead of spinning its
+	// dummy until the slice is over: this CPU does it at once, another one
+	// is sent an IPI. A CPU going idle just as the process is queued finds
+	// it itself (see runProcess).
+	private void wakeIdleCpu(int q, int cpu)
+	{
+		int idle = -1;
+		if(claimIdle(q))
+			idle = q;
+		for(int w=0; idle==-1 && w<idleCpus.length(); w++)
+		{
+			long bits;
+			while(idle==-1 && (bits = idleCpus.get(w))!=0)
+			{
+				int i = w*64 + Long.numberOfTrailingZeros(bits);
+				if(claimIdle(i))
+					idle = i;
+			}
+		}
+		
+		if(idle==cpu)
+			preempt(cpu);
+		else if(idle!=-1)
+			hint.sendIPI(IntController.IPI_DISPATCH, cpu, idle);
+	}
+	
+	// Dispatch IPI: the CPU was idle when it was sent, and the process may
+	// have been taken by another CPU since
+	private void handleDispatch(int cpu)
+	{
+		ProcessDescriptor paux = getCpuList(cpu).getFront();
+		if(paux!=null && paux.getPID()==0)
+			preempt(cpu);
+	}
+	
+	// SLEEP and ALARM: the process running on cpu leaves it until tick t
+	private void sleepUntil(int cpu, long t)
+	{
+		ProcessDescriptor paux = getCpuList(cpu).popFront();
+		runQueues.blocked(paux, cpu);
+		runProcess(runQueues.next(cpu), cpu);
+		moveSleepers(cpu, paux.getWakeup(), t);
+	}
+	
+	// Moves the sleepers' wheel to the present, making ready the processes
+	// whose time came, and then puts e there to wake at tick t, if not null.
+	// Tickless, the sleep timer is armed for when the wheel has work again.
+	private void moveSleepers(int cpu, TimingWheel.Entry e, long t)
+	{
+		List<ProcessDescriptor> woken;
+		synchronized(sleepers)
+		{
+			woken = sleepers.advance(runQueues.getTime());
+			if(e!=null)
+				sleepers.add(e, t);
+			if(cpuTimers!=null)
+			{
+				long next = sleepers.nextTick();
+				if(next<0)
+					cpuTimers.cancel(cpuTimers.getSleepTimer());
+				else
+					cpuTimers.arm(cpuTimers.getSleepTimer(), (int) (next - sleepers.getTime()));
+			}
+		}
+		for(ProcessDescriptor p : woken)
+		{
+			if(p.isKilled())
+				killProcess(p);
+			else
+				wakeIdleCpu(runQueues.woke(p), cpu);
+		}
+	}
+	
 	synchronized private void killCurrentProcess(int procId)
 	{
 		killProcess( getCpuList(procId).popFront() );
-		runProcess( getReadyList().popFront(), procId );
+		runProcess( runQueues.next(procId), procId );
+	}
+	
+	// Its memory goes back, and it leaves the process table. Killing it
+	// twice (from the console, and by itself) does nothing the second time.
+	synchronized private void killProcess(ProcessDescriptor p)
+	{
+		if(p.getPID()!=0 && procTable.remove(p.getPID())==null)
+			return;
+		runQueues.exited(p);
+		
+		// what it PUT still goes to the disk, as if it had closed its files
+		for(FileDescriptor f : new ArrayList<FileDescriptor>(dirtyFiles))
+			if(f.getProcess()==p)
+				flushFile(f, null);
+		
+		if(p.getPageTable()==null)
+		{
+			if(p.getBase()>=0)
+				allocator.free(p.getBase());
+			p.setBase(-1);
+			return;
+		}
+		
+		// give back its frames and swap slots
+		int[] pt = p.getPageTable();
+		for(int i=0; i<pt.length; i++)
+		{
+			if(pt[i]>=0)
+			{
+				frameOwner[pt[i]] = null;
+				pt[i] = -1;
+			}
+			if(isSwapSlot(p.getPageDisk(i), p.getPageAddress(i)))
+				swapUsed[(p.getPageAddress(i) - Config.SWAPBASE) / Config.PAGESIZE] = false;
+		}
+	}
+	
+	private boolean isSwapSlot(int disk, int address)
+	{
+		return disk==Config.SWAPDISK && address>=Config.SWAPBASE;
+	}
+	
+	// Finds a frame for a page: a free one, or the victim chosen by the
+	// clock (second chance) algorithm. Frames of processes running on some
+	// CPU are never taken, nor frames waiting for the disk. Returns -1 if
+	// every frame is like that.
+	private int findFrame()
+	{
+		for(int n=0; n<2*nframes; n++)
+		{
+			int f = clockHand;
+			clockHand = (clockHand+1) % nframes;
+			
+			if(frameBusy[f])
+				continue;
+			if(frameOwner[f]==null)
+				return f;
+			if(isRunning(frameOwner[f]))
+				continue;
+			if(mem.isReferenced(f))
+			{
+				mem.clearReferenced(f); // second chance
+				continue;
+			}
+			
+			if(evictFrame(f))
+				return f;
+		}
+		return -1;
 	}
 	
-	private void killProcess(ProcessDescriptor p)
+	private boolean isRunning(ProcessDescriptor p)
 	{
-		partitionList[p.getPartition()] = PART_FREE;
+		for(int i=0; i<ncpus; i++)
+			if(getCpuList(i).getFront()==p)
+				return true;
+		return false;
+	}
+	
+	// Takes a page out of memory. If it was changed it goes to its swap slot
+	// (the write is queued with the words copied, so the frame is free now).
+	// Returns false if the page can't leave because the swap area is full.
+	private boolean evictFrame(int f)
+	{
+		ProcessDescriptor owner = frameOwner[f];
+		int page = framePage[f];
+		
+		if(mem.isDirty(f) && !isSwapSlot(owner.getPageDisk(page), owner.getPageAddress(page)))
+		{
+			int slot = 0;
+			while(slot<swapUsed.length && swapUsed[slot])
+				++slot;
+			if(slot==swapUsed.length)
+			{
+				System.err.println("Swap area is full: page " + page + " of process " + owner.getPID() + " stays");
+				return false;
+			}
+			swapUsed[slot] = true;
+			owner.setPageHome(page, Config.SWAPDISK, Config.SWAPBASE + slot*Config.PAGESIZE);
+		}
+		
+		owner.getPageTable()[page] = -1;
+		frameOwner[f] = null;
+		
+		if(mem.isDirty(f))
+		{
+			
+			int[] words = new int[Config.PAGESIZE];
+			for(int i=0; i<Config.PAGESIZE; i++)
+				words[i] = mem.superRead(mem.getFrameAddress(f) + i);
+			queueDiskRequest(Config.SWAPDISK, Disk.OPERATION_WRITE_PAGE, owner.getPageAddress(page), 0, words, null);
+			System.err.println("Page " + page + " of process " + owner.getPID() + " swapped out");
+		}
+		return true;
 	}
 	
-	synchronized private void saveContext(int cpu)
+	// Page fault of the process running on cpu: its PC is already back at
+	// the instruction that faulted.
+	synchronized private void handlePageFault(int cpu)
+	{
+		ProcessDescriptor paux = getCpuList(cpu).getFront();
+		int page = getProcessor(cpu).getMMU().getFaultAddress() / Config.PAGESIZE;
+		int f = findFrame();
+		
+		if(f==-1)
+		{
+			// no frame can be taken now: let others run and fault again later
+			paux = getCpuList(cpu).popFront();
+			runQueues.blocked(paux, cpu);
+			runQueues.woke(paux);
+			runProcess(runQueues.next(cpu), cpu);
+			return;
+		}
+		
+		frameOwner[f] = paux;
+		framePage[f] = page;
+		
+		int disk = paux.getPageDisk(page);
+		if(disk==-1)
+		{
+			// a page of zeros: no need to go to the disk
+			for(int i=0; i<Config.PAGESIZE; i++)
+				mem.superWrite(mem.getFrameAddress(f) + i, 0);
+			mem.resetFrame(f, true);
+			paux.getPageTable()[page] = f;
+			return;
+		}
+		
+		frameBusy[f] = true;
+		paux.setPendingPage(page, f);
+		paux.setFlag(ProcessDescriptor.FLAG_PAGEIN);
+		queueDiskRequest(disk, Disk.OPERATION_READ_PAGE, paux.getPageAddress(page), 0, null, paux);
+		blockCurrent(cpu, disk);
+		
+		System.err.println("Page fault: page " + page + " of process " + paux.getPID() + " goes to frame " + f);
+	}
+	
+	// The process running on cpu waits for the disk, and the CPU gets another
+	private void blockCurrent(int cpu, int disk)
+	{
+		ProcessDescriptor paux = getCpuList(cpu).popFront();
+		runQueues.blocked(paux, cpu);
+		getDiskList(disk).pushBack(paux);
+		runProcess(runQueues.next(cpu), cpu);
+	}
+	
+	private void saveContext(int cpu)
 	{
 		int pc;
 		int[] reg;
@@ -186,7 +519,7 @@ class Kernel
 		paux.setReg(reg);
 	}
 	
-	synchronized private void restoreContext(int cpu)
+	private void restoreContext(int cpu)
 	{
 		ProcessDescriptor paux = getCpuList(cpu).getFront();
 		if(paux!=null)
@@ -196,24 +529,63 @@ class Kernel
 		}
 	}
 	
-	private void queueDiskRequest(int whichdisk, int operation, int address, int wdata)
+	// The request waits in the queue if the disk is busy with another one
+	synchronized private void queueDiskRequest(int whichdisk, int operation, int address, int wdata,
+			int[] wblock, ProcessDescriptor p)
 	{
-		if(diskReqs.get(whichdisk).isEmpty())
-			getDisk(whichdisk).roda(operation, address, wdata);
-		else
-			diskReqs.get(whichdisk).add( new DiskRequest(whichdisk, operation, address, wdata) );
+		DiskRequest r = new DiskRequest(whichdisk, operation, address, wdata, wblock, p);
+		diskQueues[whichdisk].queued(r, runQueues.getTime());
+		if(diskCurrent[whichdisk]==null)
+			startNextDiskRequest(whichdisk);
+	}
+	
+	// The PUTs kept by f go to the disk in one block; p waits for it (null if
+	// nobody does)
+	synchronized private void flushFile(FileDescriptor f, ProcessDescriptor p)
+	{
+		if(f.getWriteCount()==0)
+			return;
+		dirtyFiles.remove(f);
+		int n = f.getWriteCount();
+		int add = f.getWriteAddress();
+		queueDiskRequest(f.getDisk(), Disk.OPERATION_WRITE_BLOCK, add, n, f.takeWrites(), p);
 	}
 	
-	private void handleTerminal()
+	// Before the disk reads a file; the DiskScheduler keeps the read until
+	// these writes are done
+	synchronized private void flushDisk(int d)
 	{
-		int[] val = new int[2];
+		for(FileDescriptor f : new ArrayList<FileDescriptor>(dirtyFiles))
+			if(f.getDisk()==d)
+				flushFile(f, null);
+	}
+	
+	private void startDiskRequest(DiskRequest r)
+	{
+		diskCurrent[r.disk] = r;
+		getDisk(r.disk).roda(r.op, r.add, r.data, r.block);
+	}
+	
+	private void handleTerminal(int cpu)
+	{
+		int[] val = new int[3];
 		boolean success = true;
 		ProcessDescriptor paux = null;
 		
 		// parse the user's entry
 		StreamTokenizer tokenizer = new StreamTokenizer( new StringReader(con.getLine()) );
 		try {
-			for(int i=0; i<2; i++)
+			// a word is a command for the kernel itself
+			if(tokenizer.nextToken() == StreamTokenizer.TT_WORD)
+			{
+				handleCommand(tokenizer, cpu);
+				return;
+			}
+			tokenizer.pushBack();
+			
+			// disk, address and (optional) words for data
+			val[2] = -1;
+			for(int i=0; i<3; i++)
 				if(tokenizer.nextToken() != StreamTokenizer.TT_EOF
 					&& tokenizer.ttype == StreamTokenizer.TT_NUMBER)
 						val[i] = (int) tokenizer.nval;
@@ -224,14 +596,18 @@ class Kernel
 		
 		if(success)
 		{
-			if(val[0]==0 || val[0]==1)
+			if(val[2]>mem.getSize())
+				System.out.println("Invalid data size: the memory has " + mem.getSize() + " words.");
+			else if(val[0]==0 || val[0]==1)
 			{
-				// create the process without inserting it on readyList
+				// create the process without giving it to the run queues
 				paux = createProcess();
 				if(paux!=null)
 				{
+					if(val[2]>=0)
+						paux.setDataSize(val[2]);
 					getDiskList(val[0]).pushBack(paux);
-					queueDiskRequest(val[0], Disk.OPERATION_LOAD, val[1], 0);
+					queueDiskRequest(val[0], Disk.OPERATION_LOAD, val[1], 0, null, paux);
 				}
 			}
 			else
@@ -239,35 +615,225 @@ class Kernel
 		}
 	}
 	
-	synchronized private void handleTimerInt()
+	// Console commands: trace on|off, mem, ipi, sched, timer, sleep, disk,
+	// ps, kill <pid>, stats <pid>
+	private void handleCommand(StreamTokenizer tokenizer, int cpu) throws IOException
+	{
+		String cmd = tokenizer.sval;
+		
+		if(cmd.equals("trace"))
+		{
+			tokenizer.nextToken();
+			if(tokenizer.ttype == StreamTokenizer.TT_WORD && tokenizer.sval.equals("on"))
+				Tracer.setEnabled(true);
+			else if(tokenizer.ttype == StreamTokenizer.TT_WORD && tokenizer.sval.equals("off"))
+				Tracer.setEnabled(false);
+			System.out.println("Tracing is " + (Tracer.isEnabled() ? "on" : "off")
+					+ ", " + Tracer.getDropped() + " records dropped.");
+		}
+		else if(cmd.equals("mem"))
+		{
+			if(allocator!=null)
+				System.out.println(allocator.getStats());
+			else
+				System.out.println("Memory is paged: " + nframes + " frames.");
+		}
+		else if(cmd.equals("ipi"))
+		{
+			for(int i=0; i<ncpus; i++)
+				System.out.println(hint.getIPIStats(i));
+		}
+		else if(cmd.equals("sched"))
+			System.out.println(runQueues.getStats());
+		else if(cmd.equals("timer"))
+		{
+			if(cpuTimers!=null)
+				System.out.println(cpuTimers.getStats());
+			else
+				System.out.println("The timer is periodic: one interrupt every two ticks.");
+		}
+		else if(cmd.equals("sleep"))
+		{
+			synchronized(sleepers)
+			{
+				System.out.println(sleepers.getStats());
+			}
+		}
+		else if(cmd.equals("disk"))
+		{
+			synchronized(this)
+			{
+				System.out.println(diskQueues[0].getStats());
+				System.out.println(diskQueues[1].getStats());
+			}
+			for(int d=0; d<2; d++)
+			{
+				System.out.println(getDisk(d).getStats());
+				if(Config.DISKGEOMETRY)
+					System.out.println(String.format("Disk %d, last request: seek %.2f, rotation %.2f, transfer %.2f",
+						d, getDisk(d).getSeekTime(), getDisk(d).getRotationTime(), getDisk(d).getTransferTime()));
+			}
+		}
+		else if(cmd.equals("ps"))
+		{
+			ArrayList<ProcessDescriptor> all = procTable.getAll();
+			System.out.println(all.size() + " processes");
+			for(ProcessDescriptor p : all)
+				System.out.println(p.getPID() + "\t" + getState(p) + ", PC " + p.getPC());
+		}
+		else if(cmd.equals("kill") || cmd.equals("stats"))
+		{
+			ProcessDescriptor p = null;
+			if(tokenizer.nextToken() == StreamTokenizer.TT_NUMBER)
+				p = procTable.get((int) tokenizer.nval);
+			if(p==null)
+				System.out.println("Usage: " + cmd + " <pid>, of a live process (see ps).");
+			else if(cmd.equals("kill"))
+				kill(p, cpu);
+			else
+				System.out.println(getStats(p));
+		}
+		else
+			System.out.println("Unknown command: " + cmd);
+	}
+	
+	// Console kill: a process that is sleeping or ready dies now. One that
+	// runs on a CPU is taken out of it with a reschedule IPI (or right
+	// away on this CPU), and one waiting for the disk dies when it is done.
+	private void kill(ProcessDescriptor p, int cpu)
+	{
+		p.setKilled();
+		boolean asleep;
+		synchronized(sleepers)
+		{
+			asleep = sleepers.isSleeping(p.getWakeup());
+			sleepers.remove(p.getWakeup());
+		}
+		if(asleep || runQueues.remove(p))
+		{
+			killProcess(p);
+			System.out.println("Process " + p.getPID() + " killed.");
+			return;
+		}
+		
+		int c = p.getSchedInfo().cpu;
+		if(c>=0 && getCpuList(c).getFront()==p)
+		{
+			System.out.println("Process " + p.getPID() + " killed on CPU " + c + ".");
+			if(c==cpu)
+				killCurrentProcess(cpu);
+			else
+				hint.sendIPI(IntController.IPI_RESCHEDULE, cpu, c);
+		}
+		else
+			System.out.println("Process " + p.getPID() + " will be killed when the kernel has it back.");
+	}
+	
+	// What the process is doing now. It may change as we look.
+	private String getState(ProcessDescriptor p)
+	{
+		Scheduler.Info info = p.getSchedInfo();
+		boolean asleep;
+		synchronized(sleepers)
+		{
+			asleep = sleepers.isSleeping(p.getWakeup());
+		}
+		int c = info.cpu;
+		int q = info.queue;
+		if(p.isKilled())
+			return "killed";
+		if(asleep)
+			return "sleeping";
+		if(q>=0)
+			return "ready on CPU " + q;
+		if(c>=0 && getCpuList(c).getFront()==p)
+			return "running on CPU " + c;
+		if(p.isLoading())
+			return "loading";
+		return "waiting for the disk";
+	}
+	
+	private String getStats(ProcessDescriptor p)
+	{
+		Scheduler.Info info = p.getSchedInfo();
+		String mem = p.getPageTable()!=null ? p.getPageTable().length + " pages"
+			: p.getMemSize() + " words at " + p.getBase();
+		return "Process " + p.getPID() + ": " + getState(p) + ", PC " + p.getPC()
+			+ ", " + mem + ", " + p.getOpenFiles() + " files open"
+			+ (p.getAlarmPeriod()>0 ? ", alarm every " + p.getAlarmPeriod() + " ticks" : "")
+			+ "\nCreated at tick " + info.created + ", first ran at " + info.firstRun + ", last on CPU " + info.cpu
+			+ "; level " + info.level + ", vruntime " + info.vruntime + ", compensation " + info.compensation;
+	}
+	
+	private void handleTimerInt(int cpu)
 	{
 		ProcessDescriptor paux = null;
 		
+		if(cpuTimers!=null)
+		{
+			// The one-shot timer of this CPU: the slice is over, unless
+			// the timer was armed again since it went off
+			runQueues.clock(cpu);
+			if(!cpuTimers.isArmed(cpu))
+				preempt(cpu);
+			return;
+		}
+		
+		runQueues.clock();
 		for(int i=0; i<ncpus; i++)
 		{
 			paux = getCpuList(i).getFront();
+			if(paux!=null)
+				runQueues.tick(paux, i);
 			
 			if( paux!=null && paux.tickTime()==0 )
 			{
-				System.err.println("Time is over for process " + getCpuList(i).getFront().getPID() + ", saving the PC=" + getProcessor(i).getPC());
-				getProcessor(i).sem.P();
-					paux.setPC(getProcessor(i).getPC());
-					paux.setReg(getProcessor(i).getReg());
-				
-					paux = getCpuList(i).popFront();
-					if(paux.getPID()!=0)
-						getReadyList().pushBack(paux);
-					
-					paux = getReadyList().popFront();
-					runProcess( paux, i );
-				getProcessor(i).sem.V();
-				
-				System.err.println("Time slice is over! CPU " + i + " now runs: " + getCpuList(i).getFront().getPID());
+				// This CPU switches right away; the others are sent an
+				// IPI, and do it themselves at their next instruction.
+				if(i==cpu)
+					preempt(cpu);
+				else
+					hint.sendIPI(IntController.IPI_RESCHEDULE, cpu, i);
 			}
 		}
+		
+		// the wheel moves a tick, once the slices are counted
+		moveSleepers(cpu, null, 0);
 	}
 	
-	synchronized private void updateInterface(int interruptNumber, int cpu)
+	// Reschedule IPI: the process may have left the CPU since it was sent,
+	// and then the one running now has a new slice. It may also be sent by
+	// the console to kill the process running here.
+	private void handleReschedule(int cpu)
+	{
+		ProcessDescriptor paux = getCpuList(cpu).getFront();
+		if(paux!=null && paux.isKilled())
+			killCurrentProcess(cpu);
+		else if(paux!=null && paux.getTime()<=0)
+			preempt(cpu);
+	}
+	
+	private void preempt(int cpu)
+	{
+		ProcessDescriptor paux = getCpuList(cpu).getFront();
+		
+		System.err.println("Time is over for process " + paux.getPID() + ", saving the PC=" + getProcessor(cpu).getPC());
+		saveContext(cpu);
+		
+		paux = getCpuList(cpu).popFront();
+		if(paux.getPID()!=0)
+			runQueues.preempted(paux, cpu);
+		
+		runProcess( runQueues.next(cpu), cpu );
+		
+		// more are waiting here: an idle CPU can take one
+		if(runQueues.getQueued(cpu)>0)
+			wakeIdleCpu(cpu, cpu);
+		
+		System.err.println("Time slice is over! CPU " + cpu + " now runs: " + getCpuList(cpu).getFront().getPID());
+	}
+	
+	private void updateInterface(int interruptNumber, int cpu)
 	{
 		SopaInterface.updateDisplay(getCpuList(cpu).getFront().getPID(), interruptNumber);
 		Drawer.drawEvent(interruptNumber, cpu);
@@ -277,11 +843,30 @@ class Kernel
 	{
 		ProcessDescriptor paux = null;
 		FileDescriptor faux = null;
-		int[] raux = getProcessor(cpu).getReg();
+		int[] raux = null;
 		
-		paux = getDiskList(d).popFront();
-		if(paux==null)
+		DiskRequest r = diskCurrent[d];
+		if(r==null)
 			return 1;
+		diskCurrent[d] = null;
+		diskQueues[d].done(r, runQueues.getTime());
+		
+		// PUTs are on the disk now: the GET buffers may have the old words
+		if(r.op==Disk.OPERATION_WRITE_BLOCK && getDisk(d).getError()==Disk.ERRORCODE_SUCCESS)
+			fileWrites.incrementAndGet(d);
+		
+		// A request of the kernel itself (a page going to swap, or PUTs of
+		// a file written): nothing else to do, the frame was already given
+		// to another page
+		if(r.proc==null)
+		{
+			startNextDiskRequest(d);
+			return 0;
+		}
+		
+		paux = r.proc;
+		getDiskList(d).remove(paux); // the requests may not be done in order
+		raux = paux.getReg(); // its own, not those of the CPU that took the interrupt
 		int flag = paux.getFlag();
 		paux.resetFlag(); //reset hanging flag
 		
@@ -293,9 +878,45 @@ class Kernel
 			//process was being loaded from disk
 			if(flag==ProcessDescriptor.FLAG_LOADING)
 			{
-				//write on memory the loaded data
-				for(int i=0; i<getDisk(d).getSize(); i++)
-					mem.superWrite(paux.getPartition()*mem.getPartitionSize() +i, getDisk(d).getData(i));
+				if(paux.getPageTable()!=null)
+				{
+					//paged: the image stays on disk, pages come when used
+					paux.setImage(d, r.add, getDisk(d).getSize());
+				}
+				else
+				{
+					//get memory for the program and its data
+					int size = getDisk(d).getSize() + paux.getDataSize();
+					int base = allocator.alloc(size);
+					if(base==-1)
+					{
+						System.out.println("Error creating new process: no memory available.");
+						killProcess(paux); // out of the table, and counted as exited
+						startNextDiskRequest(d);
+						return 0;
+					}
+					paux.setBase(base);
+					paux.setMemSize(size);
+					
+					//write on memory the loaded data
+					for(int i=0; i<getDisk(d).getSize(); i++)
+						mem.superWrite(base +i, getDisk(d).getData(i));
+				}
+			}
+			else if(flag == ProcessDescriptor.FLAG_PAGEIN)
+			{
+				int page = paux.getPendingPage();
+				int f = paux.getPendingFrame();
+				boolean swapped = isSwapSlot(d, r.add);
+				for(int i=0; i<Config.PAGESIZE; i++)
+				{
+					//words after the end of the image are not part of the program
+					int data = swapped || page*Config.PAGESIZE+i < paux.getSize() ? getDisk(d).getData(i) : 0;
+					mem.superWrite(mem.getFrameAddress(f) + i, data);
+				}
+				mem.resetFrame(f, true);
+				frameBusy[f] = false;
+				paux.getPageTable()[page] = f;
 			}
 			else if(flag == ProcessDescriptor.FLAG_OPEN) //process was opening a file for reading
 			{
@@ -310,10 +931,6 @@ class Kernel
 			}
 			else if(flag == ProcessDescriptor.FLAG_PUT)
 			{
-				faux = paux.getHangingFile();
-				if(faux.getPos() == faux.getSize()) //position was outside the original file location
-					faux.incSize();
-				faux.incPos();
 				//set registers with information about the operation
 				raux[1] = 0;
 				//update the processor with the new registers data
@@ -322,9 +939,15 @@ class Kernel
 			else if(flag == ProcessDescriptor.FLAG_GET)
 			{
 				faux = paux.getHangingFile();
+				//keep the block read ahead, for the next GETs
+				int[] buffer = faux.getBuffer();
+				for(int i=0; i<getDisk(d).getSize(); i++)
+					buffer[i] = getDisk(d).getData(i);
+				//as the disk is now: it does one request at a time
+				faux.setBuffered(getDisk(d).getSize(), fileWrites.get(d));
 				if(faux.getPos() < faux.getSize())
 					faux.incPos();
-				int data = getDisk(faux.getDisk()).getData(0);
+				int data = getDisk(d).getData(0);
 				//set registers with information about the operation
 				raux[0] = data;
 				raux[1] = 0;
@@ -366,33 +989,47 @@ class Kernel
 				//update the processor with the new registers data
 				paux.setReg(raux);				
 			}
+			else if(flag == ProcessDescriptor.FLAG_PAGEIN)
+			{
+				//the process can't go on without its page
+				System.out.println("Error bringing page to memory: killing process " + paux.getPID());
+				frameBusy[paux.getPendingFrame()] = false;
+				frameOwner[paux.getPendingFrame()] = null;
+				killProcess(paux);
+				startNextDiskRequest(d);
+				return 0;
+			}
 		}
 		
-		// Done with all special handlings, put back this process for running
-		getReadyList().pushBack( paux );
-		
-		// If we loaded a new process, there may be idle CPUs
-		// If that's the case, we remove the Dummy process and replace it
-		//  with our new process.
-		/*if(flag==ProcessDescriptor.FLAG_LOADING)
-			for(int i=0; i<ncpus; i++)
-				if(getCpuList(i].getFront().getPID()==0)
-				{
-					getCpuList(i].popFront();
-					runProcess( getReadyList().popFront(), i );
-					break;
-				}*/
-		
-		// Make the disk run for the next request, if there are any
-		if(!diskReqs.get(d).isEmpty())
+		// Done with all special handlings, put back this process for running,
+		// on an idle CPU if there is one; unless it was killed meanwhile
+		if(paux.isKilled())
 		{
-			DiskRequest r = diskReqs.get(d).poll();
-			getDisk(r.disk).roda(r.op, r.add, r.data);
+			killProcess(paux);
+			startNextDiskRequest(d);
+			return 0;
 		}
+		int q;
+		if(flag==ProcessDescriptor.FLAG_LOADING)
+			q = runQueues.ready(paux);
+		else
+			q = runQueues.woke(paux);
+		wakeIdleCpu(q, cpu);
+		
+		startNextDiskRequest(d);
 		
 		return 0;
 	}
 	
+	// Make the disk run for the next request, if there are any, in the
+	// order of its DiskScheduler
+	private void startNextDiskRequest(int d)
+	{
+		DiskRequest r = diskQueues[d].next(runQueues.getTime());
+		if(r!=null)
+			startDiskRequest(r);
+	}
+	
 	// Each time the kernel runs it have access to all hardware components
 	public void run(int interruptNumber, int cpu)
 	{
@@ -424,7 +1061,7 @@ class Kernel
 			case 2:
 				// TIMER INT
 				//
-				handleTimerInt();
+				handleTimerInt(cpu);
 				break;
 			
 			case 3:
@@ -434,6 +1071,12 @@ class Kernel
 				killCurrentProcess(cpu);
 				break;
 			
+			case 4:
+				// PAGE FAULT
+				//
+				handlePageFault(cpu);
+				break;
+			
 			case 5:
 				// DISK 1 INT
 				//
@@ -444,10 +1087,28 @@ class Kernel
 				
 				break;
 			
+			case IntController.IPI_RESCHEDULE:
+				// RESCHEDULE IPI, from the timer (or a kill) on another CPU
+				//
+				handleReschedule(cpu);
+				break;
+			
+			case IntController.IPI_DISPATCH:
+				// DISPATCH IPI, a process is ready for this idle CPU
+				//
+				handleDispatch(cpu);
+				break;
+			
+			case CpuTimers.SLEEPINT:
+				// SLEEP TIMER INT, tickless: sleeping processes may wake
+				//
+				moveSleepers(cpu, null, 0);
+				break;
+			
 			case 15:
 				// CONSOLE INT
 				//
-				handleTerminal();
+				handleTerminal(cpu);
 				
 				break;
 			
@@ -476,10 +1137,9 @@ class Kernel
 						//set process flag for marking that it's waiting for a file operation
 						paux.setFlag(ProcessDescriptor.FLAG_OPEN);
 						//queue the disk request for opening the file
-						queueDiskRequest(raux[1], Disk.OPERATION_LOAD, raux[2], 0 );
+						queueDiskRequest(raux[1], Disk.OPERATION_LOAD, raux[2], 0, null, paux );
 						//remove from CPU Queue and insert on Disk Queue
-						getDiskList(raux[1]).pushBack( getCpuList(cpu).popFront() );
-						runProcess(getReadyList().popFront(),cpu);
+						blockCurrent(cpu, raux[1]);
 						
 						System.err.println("Requested for opening file on address " + raux[2] );
 					}
@@ -494,6 +1154,8 @@ class Kernel
 				paux = getCpuList(cpu).getFront();
 				
 				faux = paux.getFile(raux[0]);				
+				if(faux!=null)
+					flushFile(faux, null); //what it PUT still goes to the disk
 				paux.removeFile(raux[0]);
 				
 				break;
@@ -504,16 +1166,28 @@ class Kernel
 				
 				faux = paux.getFile(raux[0]);
 				
-				if(faux!=null && faux.getPos() < faux.getSize())
+				if(faux!=null && faux.getPos() < faux.getSize() && faux.isBuffered(fileWrites.get(faux.getDisk())))
+				{
+					//read ahead by an earlier GET: no need for the disk
+					raux[0] = faux.getBuffered();
+					raux[1] = 0;
+					faux.incPos();
+					getProcessor(cpu).setReg(raux);
+					
+					System.err.println("GET on file " + faux.getId() + " from its buffer");
+				}
+				else if(faux!=null && faux.getPos() < faux.getSize())
 				{
 					//set process flag for marking that it's waiting for a file operation
 					paux.setFlag(ProcessDescriptor.FLAG_GET);
 					paux.setHangingFile(faux);
-					//queue the disk request
-					queueDiskRequest(faux.getDisk(), Disk.OPERATION_READ, faux.getPos()+faux.getAddress(), 0 );
+					//queue the disk request: the word asked and the next ones,
+					//after the PUTs kept for this disk
+					flushDisk(faux.getDisk());
+					queueDiskRequest(faux.getDisk(), Disk.OPERATION_READ_BLOCK, faux.getPos()+faux.getAddress(),
+						Math.min(Disk.BUFFER_SIZE, faux.getSize()-faux.getPos()), null, paux );
 					//remove from CPU Queue and insert on Disk Queue
-					getDiskList(raux[1]).pushBack( getCpuList(cpu).popFront() );
-					runProcess(getReadyList().popFront(),cpu);
+					blockCurrent(cpu, faux.getDisk());
 					
 					System.err.println("Requested for GET on file " + raux[0] );
 				}
@@ -538,16 +1212,35 @@ class Kernel
 				
 				if(faux!=null && faux.getPos()<faux.getSize())
 				{
-					//set process flag for marking that it's waiting for a file operation
-					paux.setFlag(ProcessDescriptor.FLAG_PUT);
-					paux.setHangingFile(faux);
-					//queue the disk request
-					queueDiskRequest(faux.getDisk(), Disk.OPERATION_WRITE, faux.getPos()+faux.getAddress(), raux[1] );
-					//remove from CPU Queue and insert on Disk Queue
-					getDiskList(faux.getDisk()).pushBack( getCpuList(cpu).popFront() );
-					runProcess(getReadyList().popFront(),cpu);
+					System.err.println("PUT on file " + raux[0] + " with " + raux[1]);
 					
-					System.err.println("Requested for PUT on file " + raux[0] + " with " + raux[1]);
+					synchronized(this)
+					{
+						//kept with the PUTs before it, if it goes right after them
+						if(!faux.canWrite())
+							flushFile(faux, null);
+						if(faux.getWriteCount()==0)
+							dirtyFiles.add(faux);
+						faux.write(raux[1]);
+						faux.putBuffered(raux[1], fileWrites.get(faux.getDisk()));
+						if(faux.getPos() == faux.getSize()) //position was outside the original file location
+							faux.incSize();
+						faux.incPos();
+						raux[1] = 0;
+						
+						if(faux.isWriteFull())
+						{
+							//a whole block: it goes to the disk, and the process waits
+							//for it, so it never gets more than a block ahead
+							paux.setFlag(ProcessDescriptor.FLAG_PUT);
+							paux.setHangingFile(faux);
+							flushFile(faux, paux);
+							//remove from CPU Queue and insert on Disk Queue
+							blockCurrent(cpu, faux.getDisk());
+						}
+						else
+							getProcessor(cpu).setReg(raux);
+					}
 				}
 				else
 				{
@@ -560,6 +1253,43 @@ class Kernel
 				
 				break;
 				
+			case 38: // SLEEP
+				// for reg 0 ticks; nothing if it isn't positive
+				raux = getProcessor(cpu).getReg();
+				if(raux[0]>0)
+					sleepUntil(cpu, runQueues.getTime() + raux[0]);
+				
+				break;
+			
+			case 39: // ALARM
+				// every reg 0 ticks: sleeps until the next one, that comes
+				// at the same pace however long the process ran in between.
+				// Reg 1 gets how many it missed. 0 turns the alarm off.
+				raux = getProcessor(cpu).getReg();
+				paux = getCpuList(cpu).getFront();
+				
+				if(raux[0]<=0)
+				{
+					paux.setAlarm(0, 0);
+					break;
+				}
+				long now = runQueues.getTime();
+				long next = now + raux[0];
+				raux[1] = 0;
+				if(raux[0]==paux.getAlarmPeriod())
+				{
+					next = paux.getAlarmNext() + raux[0];
+					if(next<=now)
+					{
+						raux[1] = (int) ((now - next) / raux[0] + 1);
+						next += (long) raux[1] * raux[0];
+					}
+				}
+				paux.setAlarm(raux[0], next);
+				sleepUntil(cpu, next);
+				
+				break;
+				
 			case 46: // PRINT
 				raux = getProcessor(cpu).getReg();
 				System.out.println( "PRINT: " + (raux[0]>>>24) + " " + ((raux[0]>>>16)&255) + " " + ((raux[0]>>>8)&255) + " " + (raux[0]&255));
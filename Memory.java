@@ -1,29 +1,82 @@
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 class Memory {
 	// This is the memory system component.
-	private int[] memoryWords;
+	private MemoryBackend memoryWords;
+	private MemoryBackend decodedWords; // decode cache, 0 means not decoded yet
+	// Translated blocks by start address, and words covered by some block.
+	// Few words are ever translated, so these tables are made of chunks
+	// that are only created when a block goes there. CPUs translate at the
+	// same time, so a new chunk is put in with compareAndSet: only one of
+	// them wins, and the others use its chunk.
+	private final static int CHUNKBITS = 12;
+	private AtomicReferenceArray<Translator.Block[]> blocks;
+	private AtomicReferenceArray<boolean[]> codeWords;
 	private int partitionSize;
 	private int npartitions;
+	
+	// Paging: memory from frameBase to the end is split in frames of
+	// Config.PAGESIZE words, and the MMUs keep their used bits here
+	private int frameBase;
+	private int nframes;
+	private boolean[] referenced;
+	private boolean[] dirty;
 
 	// constructor
 	public Memory(int ps, int np) {
+		this(ps, np, false);
+	}
+	
+	// The words can be kept out of the Java heap (see MemoryBackend); the
+	// decode cache only takes room for the code
+	public Memory(int ps, int np, boolean offHeap) {
 		// remember size and create memory
 		partitionSize = ps;
 		npartitions = np;
-		memoryWords = new int[ps*np];
+		memoryWords = MemoryBackend.create(ps*np, offHeap);
+		decodedWords = new SparseBackend(ps*np);
+		blocks = new AtomicReferenceArray<Translator.Block[]>(((ps*np) >>> CHUNKBITS) + 1);
+		codeWords = new AtomicReferenceArray<boolean[]>(blocks.length());
 		
-		// Initialize dummy program
-		init(0, 'J', 'P', 'A', 0);
+		// Initialize dummy program: the CPU stops until an interrupt comes,
+		// and stops again when the kernel is done with it
+		init(0, 'H', 'L', 'T', 0);
+		init(1, 'J', 'P', 'A', 0);
 	}
 
 	// for testing only!!
 	public void print()
 	{
 		for(int i=0; i<partitionSize*npartitions; i++)
-			System.err.println(memoryWords[i]);
+			System.err.println(memoryWords.read(i));
 	}
 	
 	public int getPartitionSize() { return partitionSize; }
 	public int getPartitionsNumber() { return npartitions; }
+	public int getSize() { return partitionSize*npartitions; }
+	
+	// Paging support
+	public void initFrames(int base) {
+		frameBase = base;
+		nframes = (getSize() - base) / Config.PAGESIZE;
+		referenced = new boolean[nframes];
+		dirty = new boolean[nframes];
+	}
+	public int getFramesNumber() { return nframes; }
+	public int getFrameAddress(int frame) { return frameBase + frame*Config.PAGESIZE; }
+	public void touchFrame(int frame, boolean write) {
+		referenced[frame] = true;
+		if (write)
+			dirty[frame] = true;
+	}
+	public boolean isReferenced(int frame) { return referenced[frame]; }
+	public boolean isDirty(int frame) { return dirty[frame]; }
+	public void resetFrame(int frame, boolean ref) {
+		referenced[frame] = ref;
+		dirty[frame] = false;
+	}
+	public void clearReferenced(int frame) { referenced[frame] = false; }
 	
 	// Access methods for the MMU: these are accessed by the kernel.
 	// They do not check memory limits. It is interpreted as kernel's
@@ -35,34 +88,141 @@ class Memory {
 	// tries to access an address which is out of its logical space.
 
 
+	// Normal accesses, made by the MMU inside the partition of the process
+	// running on its CPU. Partitions are disjoint and a partition is used by
+	// one CPU at a time, so these take no locks at all.
+	public int read(int address) {
+		return memoryWords.read(address);
+	}
+
+	public void write(int address, int data) {
+		memoryWords.write(address, data);
+		decodedWords.write(address, 0);
+		if (isCode(address))
+			invalidateBlocks(address);
+	}
+
+	// Instruction fetch: returns the word already broken by the Decoder.
+	// Each word is decoded only once, and any write to it invalidates
+	// the cached decoding.
+	// The kernel may superWrite the word from another CPU while we decode
+	// it, and clear the cache before we fill it with the old word. So we
+	// look at the word again after filling, and take the decoding back if
+	// it changed; the fences make sure that either we see the new word or
+	// its clear comes after our fill.
+	public int fetch(int address) {
+		int d = decodedWords.read(address);
+		if (d == 0) {
+			int word = memoryWords.readAcquire(address);
+			d = Decoder.decode(word);
+			decodedWords.write(address, d);
+			VarHandle.fullFence();
+			if (memoryWords.read(address) != word)
+				decodedWords.write(address, 0);
+		}
+		return d;
+	}
+
 	// Here goes some specific methods for the kernel to access memory
-	// bypassing the MMU (do not add base register or test limits)
-	synchronized public int superRead(int address) {
-		return memoryWords[address];
+	// bypassing the MMU (do not add base register or test limits).
+	// The kernel may touch the partition of a process that will run on
+	// another CPU, so its accesses have acquire/release semantics.
+	public int superRead(int address) {
+		return memoryWords.readAcquire(address);
 	}
 
-	synchronized public void superWrite(int address, int data) {
-		memoryWords[address] = data;
+	// The word is published before its decoding is cleared (see fetch)
+	public void superWrite(int address, int data) {
+		memoryWords.writeRelease(address, data);
+		VarHandle.fullFence();
+		decodedWords.write(address, 0);
+		if (isCode(address))
+			invalidateBlocks(address);
 	}
 
 	// Access methods for the Memory itself
-	public synchronized void init(int address, int a, int b, int c, int d) {
-		memoryWords[address] = (a << 24) + (b << 16) + (c << 8) + d;
+	public void init(int address, int a, int b, int c, int d) {
+		superWrite(address, (a << 24) + (b << 16) + (c << 8) + d);
+	}
+
+	// Translated blocks, used by the Translator
+	public Translator.Block getBlock(int address) {
+		Translator.Block[] chunk = blocks.get(address >>> CHUNKBITS);
+		return chunk == null ? null : chunk[address & ((1 << CHUNKBITS) - 1)];
+	}
+
+	public void putBlock(int address, Translator.Block blk) {
+		setBlock(address, blk);
+		for (int i = 0; i < blk.length; i++)
+			setCode(address + i, true);
+	}
+
+	private void setBlock(int address, Translator.Block blk) {
+		int c = address >>> CHUNKBITS;
+		Translator.Block[] chunk = blocks.get(c);
+		if (chunk == null) {
+			if (blk == null)
+				return;
+			blocks.compareAndSet(c, null, new Translator.Block[1 << CHUNKBITS]);
+			chunk = blocks.get(c);
+		}
+		chunk[address & ((1 << CHUNKBITS) - 1)] = blk;
+	}
+
+	private boolean isCode(int address) {
+		boolean[] chunk = codeWords.get(address >>> CHUNKBITS);
+		return chunk != null && chunk[address & ((1 << CHUNKBITS) - 1)];
+	}
+
+	private void setCode(int address, boolean code) {
+		int c = address >>> CHUNKBITS;
+		boolean[] chunk = codeWords.get(c);
+		if (chunk == null) {
+			if (!code)
+				return;
+			codeWords.compareAndSet(c, null, new boolean[1 << CHUNKBITS]);
+			chunk = codeWords.get(c);
+		}
+		chunk[address & ((1 << CHUNKBITS) - 1)] = code;
+	}
+
+	// Self-modifying code: throw away every block that covers the address.
+	// A block is never longer than MAXBLOCK, so only a few starts are checked.
+	private void invalidateBlocks(int address) {
+		int first = Math.max(0, address - Translator.MAXBLOCK + 1);
+		for (int i = first; i <= address; i++) {
+			Translator.Block blk = getBlock(i);
+			if (blk != null && i + blk.length > address) {
+				blk.valid = false;
+				setBlock(i, null);
+			}
+		}
+		setCode(address, false);
 	}
 }
 
 class MMU
 {
-	// MMU: base and limit registers
+	// MMU: base and limit registers, or a page table in paged mode
 	private int limitRegister; // specified in logical addresses
 	private int baseRegister; // add base to get physical address
+	private int[] pageTable; // frame of each page, -1 if not in memory
+	private boolean pageFault; // the last access needs a page brought in
+	private int faultAddress;
 	private IntController hint;
 	private Memory mem;
+	private int cpu; // gets the memory interrupts
 	
 	public MMU(Memory m, IntController i)
+	{
+		this(m, i, 0);
+	}
+	
+	public MMU(Memory m, IntController i, int c)
 	{
 		mem = m;
 		hint = i;
+		cpu = c;
 	}
 	
 	public void setLimitRegister(int val)
@@ -75,18 +235,86 @@ class MMU
 		baseRegister = val;
 	}
 	
-	public synchronized int read(int address) {
+	// With a page table the base register is not used. A null table goes
+	// back to base and limit (the dummy process runs like that).
+	public void setPageTable(int[] pt)
+	{
+		pageTable = pt;
+	}
+	
+	public int getBaseRegister() { return baseRegister; }
+	
+	// A page fault is not an interruption like the others: the CPU must
+	// call the kernel right away and then restart the instruction.
+	public boolean takePageFault()
+	{
+		boolean f = pageFault;
+		pageFault = false;
+		return f;
+	}
+	
+	public int getFaultAddress() { return faultAddress; }
+	
+	// Tells if an access would succeed, without raising the interruption
+	public boolean canAccess(int address)
+	{
+		return physical(address) >= 0;
+	}
+	
+	// Physical address of a logical one, or -1 if the access would fail.
+	// Like canAccess, it has no side effects.
+	public int physical(int address)
+	{
+		if (address >= limitRegister)
+			return -1;
+		if (pageTable == null)
+			return baseRegister + address;
+		int frame = pageTable[address / Config.PAGESIZE];
+		if (frame < 0)
+			return -1;
+		return mem.getFrameAddress(frame) + address % Config.PAGESIZE;
+	}
+	
+	// Tells if address follows address-1 in physical memory too
+	public boolean contiguous(int address)
+	{
+		return pageTable == null || address % Config.PAGESIZE != 0;
+	}
+	
+	private int translate(int address, boolean write)
+	{
 		if (address >= limitRegister) {
-			hint.set(3); //memory access violation interruption
-			return 0;
-		} else
-			return mem.superRead(baseRegister + address);
+			hint.set(3, cpu); //memory access violation interruption
+			return -1;
+		}
+		if (pageTable == null)
+			return baseRegister + address;
+		
+		int frame = pageTable[address / Config.PAGESIZE];
+		if (frame < 0) {
+			pageFault = true;
+			faultAddress = address;
+			return -1;
+		}
+		mem.touchFrame(frame, write);
+		return mem.getFrameAddress(frame) + address % Config.PAGESIZE;
+	}
+	
+	// The MMU belongs to one CPU and only that CPU uses it, so there is
+	// nothing to lock here either.
+	public int read(int address) {
+		int p = translate(address, false);
+		return p < 0 ? 0 : mem.read(p);
 	}
 
-	public synchronized void write(int address, int data) {
-		if (address >= limitRegister)
-			hint.set(3); //memory access violation interruption
-		else
-			mem.superWrite(baseRegister + address, data);
+	public int fetch(int address) {
+		int p = translate(address, false);
+		return p < 0 ? Decoder.decode(0) : mem.fetch(p);
+	}
+
+	public void write(int address, int data) {
+		int p = translate(address, true);
+		if (p >= 0)
+			mem.write(p, data);
 	}
 }
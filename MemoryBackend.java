@@ -0,0 +1,150 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+abstract class MemoryBackend
+{
+	// Where the words of the Memory really are. The heap backend is a plain
+	// int array; the off-heap one keeps the words in direct buffers, out of
+	// the Java heap, so a memory of hundreds of millions of words is not
+	// scanned by the garbage collector. Direct buffers have their own limit,
+	// -XX:MaxDirectMemorySize, that is the maximum heap size unless given:
+	// a memory larger than the heap needs it set to at least 4 bytes a word.
+	// The sparse backend, for the decode cache, only has the chunks that
+	// were written.
+	// All give plain accesses for the MMU and acquire/release ones for the
+	// kernel, as the Memory needs.
+
+	abstract int read(int address);
+	abstract void write(int address, int data);
+	abstract int readAcquire(int address);
+	abstract void writeRelease(int address, int data);
+
+	public static MemoryBackend create(int words, boolean offHeap)
+	{
+		if (offHeap)
+			return new OffHeapBackend(words);
+		return new HeapBackend(words);
+	}
+}
+
+class HeapBackend extends MemoryBackend
+{
+	private final static VarHandle WORDS = MethodHandles.arrayElementVarHandle(int[].class);
+	private final int[] words;
+
+	public HeapBackend(int n)
+	{
+		words = new int[n];
+	}
+
+	int read(int address) { return words[address]; }
+	void write(int address, int data) { words[address] = data; }
+	int readAcquire(int address) { return (int) WORDS.getAcquire(words, address); }
+	void writeRelease(int address, int data) { WORDS.setRelease(words, address, data); }
+}
+
+class OffHeapBackend extends MemoryBackend
+{
+	// A direct buffer holds at most 2GB, so the words are split in chunks
+	// of 2^CHUNKBITS words each.
+	private final static VarHandle WORDS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+	private final static int CHUNKBITS = 24;
+	private final static int CHUNKMASK = (1 << CHUNKBITS) - 1;
+	private final ByteBuffer[] chunks;
+
+	public OffHeapBackend(int n)
+	{
+		int nchunks = (int) (((long) n + CHUNKMASK) >>> CHUNKBITS);
+		chunks = new ByteBuffer[nchunks];
+		for (int i = 0; i < nchunks; i++)
+		{
+			int words = Math.min(1 << CHUNKBITS, n - (i << CHUNKBITS));
+			try {
+				chunks[i] = ByteBuffer.allocateDirect(words * 4);
+			} catch (OutOfMemoryError e) {
+				throw new OutOfMemoryError("No room for " + n + " words off the heap: run with -XX:MaxDirectMemorySize="
+					+ (((long) n * 4 >>> 20) + 1) + "m or more");
+			}
+		}
+	}
+
+	int read(int address)
+	{
+		return (int) WORDS.get(chunks[address >>> CHUNKBITS], (address & CHUNKMASK) << 2);
+	}
+
+	void write(int address, int data)
+	{
+		WORDS.set(chunks[address >>> CHUNKBITS], (address & CHUNKMASK) << 2, data);
+	}
+
+	int readAcquire(int address)
+	{
+		return (int) WORDS.getAcquire(chunks[address >>> CHUNKBITS], (address & CHUNKMASK) << 2);
+	}
+
+	void writeRelease(int address, int data)
+	{
+		WORDS.setRelease(chunks[address >>> CHUNKBITS], (address & CHUNKMASK) << 2, data);
+	}
+}
+
+class SparseBackend extends MemoryBackend
+{
+	// Only the words fetched as instructions are ever decoded, so the decode
+	// cache is made of chunks on the heap, created at the first word that
+	// isn't 0; the words of a missing chunk are 0. The CPUs decode at the
+	// same time, so a new chunk is put in with compareAndSet, and the one
+	// that loses uses the chunk of the winner.
+	private final static VarHandle WORDS = MethodHandles.arrayElementVarHandle(int[].class);
+	private final static int CHUNKBITS = 12;
+	private final static int CHUNKMASK = (1 << CHUNKBITS) - 1;
+	private final AtomicReferenceArray<int[]> chunks;
+
+	public SparseBackend(int n)
+	{
+		chunks = new AtomicReferenceArray<int[]>((int) (((long) n + CHUNKMASK) >>> CHUNKBITS));
+	}
+
+	// The chunk of the address, created if needed; null if not there
+	private int[] chunk(int address, boolean create)
+	{
+		int c = address >>> CHUNKBITS;
+		int[] chunk = chunks.get(c);
+		if (chunk == null && create)
+		{
+			chunks.compareAndSet(c, null, new int[1 << CHUNKBITS]);
+			chunk = chunks.get(c);
+		}
+		return chunk;
+	}
+
+	int read(int address)
+	{
+		int[] chunk = chunks.getAcquire(address >>> CHUNKBITS);
+		return chunk == null ? 0 : chunk[address & CHUNKMASK];
+	}
+
+	void write(int address, int data)
+	{
+		int[] chunk = chunk(address, data != 0);
+		if (chunk != null)
+			chunk[address & CHUNKMASK] = data;
+	}
+
+	int readAcquire(int address)
+	{
+		int[] chunk = chunks.getAcquire(address >>> CHUNKBITS);
+		return chunk == null ? 0 : (int) WORDS.getAcquire(chunk, address & CHUNKMASK);
+	}
+
+	void writeRelease(int address, int data)
+	{
+		int[] chunk = chunk(address, data != 0);
+		if (chunk != null)
+			WORDS.setRelease(chunk, address & CHUNKMASK, data);
+	}
+}
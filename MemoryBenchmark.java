@@ -0,0 +1,83 @@
+class MemoryBenchmark
+{
+	// Contention benchmark for the memory access path. For 1 to 32 CPUs,
+	// each CPU gets its own MMU set to its own partition and does loads and
+	// stores the way L M and W M instructions do, for a fixed time. The
+	// report shows the total and per CPU accesses per second, so we can see
+	// whether the access path scales with Config.NCPU. Every run is done
+	// with the heap and with the off-heap memory backend.
+	//
+	// Usage: java MemoryBenchmark [seconds per run]
+
+	private static volatile boolean running;
+
+	static class Worker extends Thread
+	{
+		private MMU mmu;
+		public long ops;
+
+		public Worker(MMU m)
+		{
+			mmu = m;
+		}
+
+		public void run()
+		{
+			long n = 0;
+			int acc = 0;
+			while (running)
+			{
+				for (int i = 0; i < 1024; i++)
+				{
+					acc += mmu.read(i & 63);
+					mmu.write(64 + (i & 63), acc);
+				}
+				n += 2048;
+			}
+			ops = n;
+		}
+	}
+
+	public static void main(String args[]) throws InterruptedException
+	{
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+		int maxcpus = 32;
+		int ps = 128;
+		IntController hint = new IntController(maxcpus);
+
+		for (int backend = 0; backend < 2; backend++)
+		{
+			Memory mem = new Memory(ps, maxcpus + 2, backend == 1);
+			System.out.println(backend == 1 ? "Off-heap memory" : "Heap memory");
+			System.out.println("CPUs\taccesses/s\tper CPU");
+			for (int ncpus = 1; ncpus <= maxcpus; ncpus *= 2)
+				run(mem, hint, ps, ncpus, seconds);
+		}
+	}
+
+	private static void run(Memory mem, IntController hint, int ps, int ncpus, int seconds) throws InterruptedException
+	{
+		Worker[] w = new Worker[ncpus];
+		for (int i = 0; i < ncpus; i++)
+		{
+			MMU mmu = new MMU(mem, hint, i);
+			mmu.setBaseRegister((i+2) * ps);
+			mmu.setLimitRegister(ps);
+			w[i] = new Worker(mmu);
+		}
+
+		running = true;
+		for (int i = 0; i < ncpus; i++)
+			w[i].start();
+		Thread.sleep(seconds * 1000);
+		running = false;
+
+		long total = 0;
+		for (int i = 0; i < ncpus; i++)
+		{
+			w[i].join();
+			total += w[i].ops;
+		}
+		System.out.println(ncpus + "\t" + total / seconds + "\t" + total / seconds / ncpus);
+	}
+}
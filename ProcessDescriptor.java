@@ -1,16 +1,32 @@
-import java.util.HashMap;
+import java.util.Arrays;
 
 class ProcessDescriptor {
 	private int PID;
 	private int PC;
 	private int[] reg;
 	private ProcessDescriptor next;
-	private int partition;
-	private HashMap<Integer,FileDescriptor> files;
+	private int base; // physical address of its memory, -1 if it has none yet
+	private int memSize; // words of memory, also its limit
+	private int dataSize; // words asked for data after the program
+	private FileDescriptor[] files; // open files by id, null if free
+	private long[] usedFiles; // a bit for each id in use
 	private int time;
-	private int nextFileId;
 	private int flag;
+	private volatile boolean killed; // from the console, dies when the kernel next has it
 	private FileDescriptor hangingFile=null;
+	private Scheduler.Info schedInfo; // kept by the scheduler
+	private TimingWheel.Entry wakeup; // while it sleeps in the kernel
+	private int alarmPeriod; // ALARM, in ticks, 0 if none
+	private long alarmNext; // tick of its last alarm
+	
+	// Paging: for each page, the frame where it is (-1 if not in memory) and
+	// where it is kept on disk (disk -1 is a page of zeros)
+	private int[] pageTable=null;
+	private int[] pageDisk;
+	private int[] pageAddress;
+	private int size; // words of the program image
+	private int pendingPage; // page being brought from disk
+	private int pendingFrame;
 	
 	public final static int FLAG_RUNNING = 1;
 	public final static int FLAG_LOADING = 2;
@@ -18,29 +34,62 @@ class ProcessDescriptor {
 	public final static int FLAG_CLOSE = 4;
 	public final static int FLAG_GET = 5;
 	public final static int FLAG_PUT = 6;
+	public final static int FLAG_PAGEIN = 7;
 
+	// The file gets the lowest id that is free. The table doubles when
+	// it is full; looking a file up or closing it allocates nothing.
 	public FileDescriptor openFile(int mod, int dis, int add)
 	{
-		FileDescriptor f = new FileDescriptor(nextFileId, this, mod, dis, add);
-		files.put(nextFileId, f);
-		++nextFileId;
+		int id = lowestFreeFile();
+		if(id==files.length)
+		{
+			files = Arrays.copyOf(files, 2*files.length);
+			usedFiles = Arrays.copyOf(usedFiles, (files.length + 63) / 64);
+		}
+		FileDescriptor f = new FileDescriptor(id, this, mod, dis, add);
+		files[id] = f;
+		usedFiles[id >> 6] |= 1L << (id & 63);
 		
 		hangingFile = f;
 		
 		return f;
 	}
 	
-	public void removeFile(int id) { files.remove(id); }
-	public void removeFile(FileDescriptor f) { files.remove(f.getId()); }
+	public void removeFile(int id)
+	{
+		if(id>=0 && id<files.length)
+		{
+			files[id] = null;
+			usedFiles[id >> 6] &= ~(1L << (id & 63));
+		}
+	}
+	public void removeFile(FileDescriptor f) { if(getFile(f.getId())==f) removeFile(f.getId()); }
 	public FileDescriptor getHangingFile() { return hangingFile; }
 	public void setHangingFile(FileDescriptor f) { hangingFile = f; }
 	
 	public FileDescriptor getFile(int id)
 	{
-		return files.get(id);
+		return id>=0 && id<files.length ? files[id] : null;
+	}
+	
+	public int getOpenFiles()
+	{
+		int n = 0;
+		for(int w=0; w<usedFiles.length; w++)
+			n += Long.bitCount(usedFiles[w]);
+		return n;
+	}
+	
+	private int lowestFreeFile()
+	{
+		for(int w=0; w<usedFiles.length; w++)
+			if(usedFiles[w]!=-1L)
+				return Math.min(w*64 + Long.numberOfTrailingZeros(~usedFiles[w]), files.length);
+		return files.length;
 	}
 	
 	public void setTime( int t ) { time = t; }
+	synchronized public int getTime() { return time; }
 	synchronized public int tickTime()
 	{
 		//System.err.println("Process "+PID+" ticked "+time);
@@ -51,28 +100,73 @@ class ProcessDescriptor {
 	public void 	resetFlag() { flag = FLAG_RUNNING; }
 	public void		setFlag(int f) { flag = f; }
 	public int		getFlag() { return flag; } 
+	public boolean	isKilled() { return killed; }
+	public void		setKilled() { killed = true; }
 	
 	synchronized public int 	getPID() { return PID; }
 	synchronized public int 	getPC() { return PC; }
 	synchronized public void 	setPC(int i) { PC = i; }
 	synchronized public int[] 	getReg() { return reg; }
 	synchronized public void 	setReg(int[] r) { reg = r; }
-	synchronized public int 	getPartition() { return partition; }
-	synchronized public void 	setPartition(int p) { partition = p; }
+	synchronized public int 	getBase() { return base; }
+	synchronized public void 	setBase(int b) { base = b; }
+	synchronized public int 	getMemSize() { return memSize; }
+	synchronized public void 	setMemSize(int s) { memSize = s; }
+	public int 					getDataSize() { return dataSize; }
+	public void 				setDataSize(int s) { dataSize = s; }
+	
+	public void initPages(int n)
+	{
+		pageTable = new int[n];
+		pageDisk = new int[n];
+		pageAddress = new int[n];
+		for(int i=0; i<n; i++)
+		{
+			pageTable[i] = -1;
+			pageDisk[i] = -1;
+		}
+	}
+	
+	// The program image is kept on disk from address on
+	public void setImage(int disk, int address, int s)
+	{
+		size = s;
+		for(int i=0; i*Config.PAGESIZE < s && i<pageTable.length; i++)
+			setPageHome(i, disk, address + i*Config.PAGESIZE);
+	}
+	
+	public int[]	getPageTable() { return pageTable; }
+	public int		getSize() { return size; }
+	public int		getPageDisk(int page) { return pageDisk[page]; }
+	public int		getPageAddress(int page) { return pageAddress[page]; }
+	public void		setPageHome(int page, int disk, int address) { pageDisk[page] = disk; pageAddress[page] = address; }
+	public void		setPendingPage(int page, int frame) { pendingPage = page; pendingFrame = frame; }
+	public int		getPendingPage() { return pendingPage; }
+	public int		getPendingFrame() { return pendingFrame; }
+	
+	public Scheduler.Info		getSchedInfo() { return schedInfo; }
+	public TimingWheel.Entry	getWakeup() { return wakeup; }
+	public int					getAlarmPeriod() { return alarmPeriod; }
+	public long					getAlarmNext() { return alarmNext; }
+	public void					setAlarm(int period, long next) { alarmPeriod = period; alarmNext = next; }
 	
 	public ProcessDescriptor 	getNext() { return next; }
 	public void 				setNext(ProcessDescriptor n) { next = n;}
 
 	// Constructor
-	public ProcessDescriptor(int pid, int p, boolean loading) {
+	public ProcessDescriptor(int pid, int b, int s, boolean loading) {
 		PID = pid;
 		PC = 0;
-		partition = p;
+		base = b;
+		memSize = s;
+		dataSize = Config.PROCDATASIZE;
 		flag = loading ? FLAG_LOADING : FLAG_RUNNING;
 		reg = new int[16];
-		files = new HashMap<Integer,FileDescriptor>();
+		files = new FileDescriptor[4];
+		usedFiles = new long[1];
 		time = 0;
-		nextFileId = 0;
+		schedInfo = new Scheduler.Info();
+		wakeup = new TimingWheel.Entry(this);
 	}
 	
 
@@ -119,6 +213,28 @@ class ProcessList {
 		return null;
 	}
 
+	// Takes n out from anywhere in the list; false if it isn't here
+	synchronized public boolean remove(ProcessDescriptor n) {
+		ProcessDescriptor prev = null;
+		for (ProcessDescriptor p = first; p != null; prev = p, p = p.getNext()) {
+			if (p != n)
+				continue;
+			if (prev == null)
+				first = n.getNext();
+			else
+				prev.setNext(n.getNext());
+			if (last == n)
+				last = prev;
+			n.setNext(null);
+
+			// Update interface
+			SopaInterface.removeFromList(n.getPID(), myName);
+			Drawer.removeFromList(n.getPID(), myName);
+			return true;
+		}
+		return false;
+	}
+
 	synchronized public void pushBack(ProcessDescriptor n) {
 		n.setNext(null);
 		if (last != null)
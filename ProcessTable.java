@@ -0,0 +1,118 @@
+import java.util.ArrayList;
+
+class ProcessTable
+{
+	// The live processes of the kernel by PID, for the console commands.
+	// An open addressing hash table with linear probing on two parallel
+	// arrays, so a lookup is a few array reads and nothing is allocated
+	// but when it grows (to stay at most half full). The PIDs go through a
+	// multiplicative hash, so consecutive ones spread over the table. A
+	// removed entry moves back the ones after it in its run, so there are
+	// no deleted markers and a lookup stops at the first free slot.
+	//
+	// The dummy process (PID 0) is never kept, so 0 marks a free slot.
+
+	private int[] pids;
+	private ProcessDescriptor[] procs;
+	private int count;
+
+	public ProcessTable()
+	{
+		pids = new int[64];
+		procs = new ProcessDescriptor[64];
+	}
+
+	synchronized public int getCount() { return count; }
+
+	synchronized public void put(ProcessDescriptor p)
+	{
+		if (2*(count+1) > pids.length)
+			grow();
+		int i = find(p.getPID());
+		if (pids[i] == 0)
+			++count;
+		pids[i] = p.getPID();
+		procs[i] = p;
+	}
+
+	synchronized public ProcessDescriptor get(int pid)
+	{
+		if (pid <= 0)
+			return null;
+		return procs[find(pid)];
+	}
+
+	// Returns the process removed, null if it wasn't there
+	synchronized public ProcessDescriptor remove(int pid)
+	{
+		if (pid <= 0)
+			return null;
+		int i = find(pid);
+		ProcessDescriptor p = procs[i];
+		if (p == null)
+			return null;
+		--count;
+
+		// close the gap: move back every entry after it that may go there
+		int mask = pids.length - 1;
+		int j = i;
+		while (true)
+		{
+			j = (j + 1) & mask;
+			if (pids[j] == 0)
+				break;
+			int home = slot(pids[j]);
+			// j may move to i if its home isn't in (i, j], going round
+			if (i <= j ? (home <= i || home > j) : (home <= i && home > j))
+			{
+				pids[i] = pids[j];
+				procs[i] = procs[j];
+				i = j;
+			}
+		}
+		pids[i] = 0;
+		procs[i] = null;
+		return p;
+	}
+
+	// The processes, ordered by PID
+	synchronized public ArrayList<ProcessDescriptor> getAll()
+	{
+		ArrayList<ProcessDescriptor> all = new ArrayList<ProcessDescriptor>(count);
+		for (int i = 0; i < procs.length; i++)
+			if (procs[i] != null)
+				all.add(procs[i]);
+		all.sort((a, b) -> Integer.compare(a.getPID(), b.getPID()));
+		return all;
+	}
+
+	private int slot(int pid)
+	{
+		return (pid * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(pids.length));
+	}
+
+	// The slot of pid, or the free one where it would go
+	private int find(int pid)
+	{
+		int mask = pids.length - 1;
+		int i = slot(pid);
+		while (pids[i] != 0 && pids[i] != pid)
+			i = (i + 1) & mask;
+		return i;
+	}
+
+	private void grow()
+	{
+		int[] oldPids = pids;
+		ProcessDescriptor[] oldProcs = procs;
+		pids = new int[2*oldPids.length];
+		procs = new ProcessDescriptor[2*oldProcs.length];
+		for (int i = 0; i < oldPids.length; i++)
+			if (oldPids[i] != 0)
+			{
+				int j = find(oldPids[i]);
+				pids[j] = oldPids[i];
+				procs[j] = oldProcs[i];
+			}
+	}
+}
@@ -1,33 +1,47 @@
-class Processor extends Thread
+import java.util.concurrent.locks.LockSupport;
+
+class Processor implements Runnable
 {
 	// Access to hardware components
 	private IntController hint;
 	private GlobalSynch synch;
 	private MMU mmu;
+	private Memory mem;
 	
 	// CPU internal components
 	private int PC;	// Program Counter
-	private int[] IR;	// Instruction Register
+	private int op;	// Instruction Register, already decoded:
+	private int a;	//  opcode and its two operands
+	private int b;
 	private int[] reg;	// general purpose registers
 	private int[] flag;   // flags Z E L
 	private int id;
+	private int pid;	// running process, only for the tracer
 	private final int Z = 0;
 	private final int E = 1;
 	private final int L = 2;
-	public Semaphore sem;
+	private long instructions; // executed so far, for the PerfMeter
+	private boolean halted; // by HLT, until an interrupt comes
+	private Runnable waker; // called by the IntController to end it
 
-	// Access methods
-	synchronized public int getPC() { return PC; }
-	synchronized public void setPC(int i) { PC = i; }
-	synchronized public int[] getReg() { return reg; }
-	synchronized public void setReg(int[] r) { reg = r; }
-	synchronized public int[] getFlag() { return flag; }
-	synchronized public void setFlag(int[] f) { flag = f; }
+	// Access methods. They are only called by the kernel running on this
+	// same CPU, so they need no locking: other CPUs that want this one to
+	// switch processes send it an IPI.
+	public int getPC() { return PC; }
+	public void setPC(int i) { PC = i; }
+	public int[] getReg() { return reg; }
+	public void setReg(int[] r) { reg = r; }
+	public int[] getFlag() { return flag; }
+	public void setFlag(int[] f) { flag = f; }
+	public void setPid(int p) { pid = p; }
+	public boolean isHalted() { return halted; }
+	public void setWaker(Runnable w) { waker = w; }
 
 	// Kernel is like a software in ROM
 	private Kernel kernel;
 	
 	public MMU getMMU() { return mmu; }
+	public long getInstructionCount() { return instructions; }
 	
 	public Processor(int _id, IntController i, GlobalSynch gs, Memory m, ConsoleListener c, 
 			Timer t, Disk d1, Disk d2, Kernel k)
@@ -37,143 +51,229 @@ class Processor extends Thread
 		synch = gs;
 		kernel = k;
 		PC = 0;
-		IR = new int[4];
 		reg = new int[16];
 		flag = new int[3];
-		mmu = new MMU(m,i);
-		sem = new Semaphore(1);
+		mem = m;
+		mmu = new MMU(m,i,id);
 	}
 	
 	public void run()
 	{
+		final Thread thread = Thread.currentThread();
+		waker = () -> LockSupport.unpark(thread);
+		
 		while (true)
 		{
-			// sleep a tenth of a second
-			synch.mysleep(2);
-			
-			sem.P();
-			
-			// read from memory in the address indicated by PC
-			int RD = mmu.read(PC);
-			// break the 32bit word into 4 separate bytes
-			IR[0] = RD>>>24;
-			IR[1] = (RD>>>16) & 255;
-			IR[2] = (RD>>>8) & 255;
-			IR[3] = RD & 255;
-			// print CPU status to check if it is ok
-			System.err.print("CPU " + id + ": PC=" + PC);
-			//System.err.print(" IR="+IR[0]+" "+IR[1]+" "+IR[2]+" "+IR[3]+" ");
-			System.err.print(" REGS="+reg[0]+" "+reg[1]+" "+reg[2]+" "+reg[3]+" ");
-			
-			PC = PC+1;
-			
-			// Execute basic instructions of the architecture
-			execute_basic_instructions();
+			// sleep a tenth of a second (or count the cycles, in turbo mode)
+			synch.cpuTurn(1);
 			
-			sem.V();
+			// a translated block pays for the rest of its instructions
+			int n = step();
+			if (n > 1)
+				synch.cpuTurn(n-1);
 			
-			//System.err.println("PC on CPU " + id + " is " + PC + " after executing the basic instructions.");
+			if (halted)
+				idle();
+		}
+	}
+	
+	// After a HLT the thread parks until an interrupt is routed to this CPU,
+	// so an idle CPU costs nothing to the host. In turbo mode the clock
+	// doesn't count the halted CPUs, and moves by itself if all are halted.
+	private void idle()
+	{
+		synch.cpuHalted();
+		while (hint.isHalted(id))
+			if (!Config.TURBO || !synch.idleTick())
+				LockSupport.park(this);
+		synch.cpuResumed();
+	}
+	
+	// Executes the next instruction, or a whole translated block, and
+	// checks for interrupts. Returns how many instructions were executed.
+	// The thread calls it in a loop, and the event engine once per event.
+	public int step()
+	{
+		halted = false;
+		
+		// With the translation tier on, try to run a whole basic block
+		if (Config.TRANSLATION)
+		{
+			int n = run_block();
+			if (n > 0)
+				return n;
+		}
+		
+		// fetch the instruction in the address indicated by PC,
+		// already decoded into opcode and operands
+		int decoded = mmu.fetch(PC);
+		if (mmu.takePageFault())
+		{
+			page_fault();
+			return 0;
+		}
+		op = Decoder.op(decoded);
+		a = Decoder.a(decoded);
+		b = Decoder.b(decoded);
+		
+		int pc = PC;
+		PC = PC+1;
+		++instructions;
+		
+		// Execute basic instructions of the architecture, tracing them.
+		// INT and illegal instructions may switch processes, so they
+		// are traced before running.
+		boolean tracing = Tracer.isEnabled();
+		if (tracing && op >= Decoder.OP_INT)
+			Tracer.record(id, pid, pc, decoded, Tracer.NOREG, 0);
+		execute_basic_instructions();
+		if (mmu.takePageFault())
+		{
+			// the instruction will run again once the page is in
+			PC = pc;
+			page_fault();
+			return 1;
+		}
+		if (tracing && op < Decoder.OP_INT)
+			trace_instruction(pc, decoded);
+		
+		//System.err.println("PC on CPU " + id + " is " + PC + " after executing the basic instructions.");
 
-			// Check for Hardware Interrupt and if so call the kernel
-			int thisInt = hint.getAndReset();
-			if ( thisInt != 0)
-				kernel.run(thisInt,id);
+		instruction_boundary();
+		return 1;
+	}
+	
+	// Check for Hardware Interrupts, and if so call the kernel
+	private void instruction_boundary()
+	{
+		int thisInt = hint.getAndReset(id);
+		if ( thisInt != 0)
+			kernel.run(thisInt,id);
+	}
+
+	// The kernel brings the page (or puts another process to run while it
+	// comes from the disk), and then the CPU goes on as usual.
+	private void page_fault()
+	{
+		kernel.run(4, id);
+		instruction_boundary();
+	}
+
+	// Runs the translated block at PC, if there is one, and returns how
+	// many instructions it executed. Interrupts are only checked between
+	// blocks, and anything the block can't do (INT, illegal instructions,
+	// memory faults) is left for the interpreter.
+	private int run_block()
+	{
+		Translator.Block blk = Translator.lookup(mem, mmu, PC);
+		if (blk == null)
+			return 0;
+		
+		int next = PC + blk.length;
+		int executed = 0;
+		while (executed < blk.length && blk.valid)
+		{
+			int r = blk.steps[executed].exec(reg, flag, mmu);
+			if (r == Translator.Step.STOP)
+			{
+				next = PC + executed;
+				break;
+			}
+			++executed;
+			if (r != Translator.Step.NEXT)
+			{
+				next = r;
+				break;
+			}
+			if (!blk.valid) // the block wrote over itself
+				next = PC + executed;
 		}
+		if (executed == 0) // stopped at its first step: interpret it
+			return 0;
+		if (Tracer.isEnabled())
+			Tracer.record(id, pid, PC, 0, Tracer.BLOCK, executed);
+		PC = next;
+		instructions += executed;
+		
+		instruction_boundary();
+		
+		return executed;
+	}
+
+	// Records the instruction with the register it changed, if any
+	private void trace_instruction(int pc, int decoded)
+	{
+		int r = Tracer.NOREG;
+		switch(op)
+		{
+			case Decoder.OP_LM:
+			case Decoder.OP_LC:
+			case Decoder.OP_SU:
+			case Decoder.OP_AD:
+				r = a;
+				break;
+			case Decoder.OP_DEC:
+			case Decoder.OP_INC:
+				r = b;
+				break;
+		}
+		Tracer.record(id, pid, pc, decoded, r, r == Tracer.NOREG ? 0 : reg[r]);
 	}
 
 	public void execute_basic_instructions()
 	{
-		if ((IR[0]=='L') && (IR[1]=='M'))
+		switch(op)
 		{
-			System.err.println(" [L M r m] ");
-			reg[IR[2]] = mmu.read(IR[3]);
+			case Decoder.OP_LM:
+				reg[a] = mmu.read(b);
+				break;
+			case Decoder.OP_LC:
+				reg[a] = b;
+				break;
+			case Decoder.OP_WM:
+				mmu.write(b,reg[a]);
+				break;
+			case Decoder.OP_SU:
+				reg[a] = reg[a] - reg[b];
+				break;
+			case Decoder.OP_AD:
+				reg[a] = reg[a] + reg[b];
+				break;
+			case Decoder.OP_DEC:
+				reg[b] = reg[b] - 1;
+				break;
+			case Decoder.OP_INC:
+				reg[b] = reg[b] + 1;
+				break;
+			case Decoder.OP_CP:
+				if (reg[a] == 0) flag[Z] = 1; else flag[Z] = 0;
+				if (reg[a] == reg[b]) flag[E] = 1; else flag[E] = 0;
+				if (reg[a] < reg[b]) flag[L] = 1; else flag[L] = 0;
+				break;
+			case Decoder.OP_JPA:
+				PC = b;
+				break;
+			case Decoder.OP_JPZ:
+				if (flag[Z] == 1)
+					PC = b;
+				break;
+			case Decoder.OP_JPE:
+				if (flag[E] == 1)
+					PC = b;
+				break;
+			case Decoder.OP_JPL:
+				if (flag[L] == 1)
+					PC = b;
+				break;
+			case Decoder.OP_INT:
+				kernel.run(b, id);
+				break;
+			case Decoder.OP_HLT:
+				// stops here, unless an interrupt is waiting already
+				halted = hint.halt(id, waker);
+				break;
+			default:
+				kernel.run(1, id);
 		}
-		else
-			if ((IR[0]=='L') && (IR[1]=='C'))
-			{
-				System.err.println(" [L C r c] ");
-				reg[IR[2]] = IR[3];
-			}
-			else
-				if ((IR[0]=='W') && (IR[1]=='M'))
-				{
-					System.err.println(" [W M r m] ");
-					mmu.write(IR[3],reg[IR[2]]);
-				}
-				else
-					if ((IR[0]=='S') && (IR[1]=='U'))
-					{
-						System.err.println(" [S U r1 r2] ");
-						reg[IR[2]] = reg[IR[2]] - reg[IR[3]];
-					}
-					else
-						if ((IR[0]=='A') && (IR[1]=='D'))
-						{
-							System.err.println(" [A D r1 r2] ");
-							reg[IR[2]] = reg[IR[2]] + reg[IR[3]];
-						}
-						else
-							if ((IR[0]=='D') && (IR[1]=='E') && (IR[2]=='C'))
-							{
-								System.err.println(" [D E C r1] ");
-								reg[IR[3]] = reg[IR[3]] - 1;
-							}
-							else
-								if ((IR[0]=='I') && (IR[1]=='N') && (IR[2]=='C'))
-								{
-									System.err.println(" [I N C r1] ");
-									reg[IR[3]] = reg[IR[3]] + 1;
-								}
-								else
-									if ((IR[0]=='C') && (IR[1]=='P'))
-									{
-										System.err.println(" [C P r1 r2] ");
-										if (reg[IR[2]] == 0) flag[Z] = 1; else flag[Z] = 0;
-										if (reg[IR[2]] == reg[IR[3]]) flag[E] = 1; else flag[E] = 0;
-										if (reg[IR[2]] < reg[IR[3]]) flag[L] = 1; else flag[L] = 0;
-									}
-									else
-										if ((IR[0]=='J') && (IR[1]=='P') && (IR[2]=='A'))
-										{
-											System.err.println(" [J P A m] ");
-											PC = IR[3];
-										}
-										else
-											if ((IR[0]=='J') && (IR[1]=='P') && (IR[2]=='Z'))
-											{
-												System.err.println(" [J P Z m] ");
-												if (flag[Z] == 1)
-													PC = IR[3];
-											}
-											else
-												if ((IR[0]=='J') && (IR[1]=='P') && (IR[2]=='E'))
-												{
-													System.err.println(" [J P E m] ");
-													if (flag[E] == 1)
-														PC = IR[3];
-												}
-												else
-													if ((IR[0]=='J') && (IR[1]=='P') && (IR[2]=='L'))
-													{
-														System.err.println(" [J P L m] ");
-														if (flag[L] == 1)
-															PC = IR[3];
-													}
-													else
-														if (IR[0]=='I'&&IR[1]=='N'&&IR[2]=='T')
-														{
-															System.err.println(" [I N T n] ");
-															sem.V();
-															kernel.run(IR[3], id);
-															sem.P();
-													
-														}
-														else
-														{
-															System.err.println(" [? ? ? ?] ");
-															sem.V();
-															kernel.run(1, id);
-															sem.P();
-														}
 	}
 }
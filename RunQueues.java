@@ -0,0 +1,225 @@
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+class RunQueues
+{
+	// The ready processes of the kernel: a run queue (a Scheduler) for each
+	// CPU, each with its own lock, so a CPU switching processes doesn't wait
+	// for the others nor for the kernel.
+	//
+	// New processes go to the shortest queue, and a process coming back from
+	// the disk goes to the CPU it ran last, where its data may still be in
+	// cache. A CPU that finds its own queue empty steals from the longest
+	// one, so the work spreads over the idle CPUs.
+	//
+	// For the "sched" command we keep, for every policy, the turnaround
+	// (creation to exit) and response time (creation to first time on a
+	// CPU) of the processes, in timer ticks, and per CPU the processes
+	// dispatched and stolen.
+	//
+	// With the periodic Timer the kernel calls clock() and tick() at each
+	// timer interrupt. With the one-shot CpuTimers (Config.TICKLESS) there
+	// are no such interrupts: the time comes from the timers, and a process
+	// is charged for its time on the CPU when it leaves it.
+
+	private Scheduler[] queues;
+	private final AtomicLong now = new AtomicLong(); // timer interrupts so far, taken by any CPU
+	private CpuTimers timers; // null with the periodic Timer
+	private long[] since; // tickless: when each CPU's process was dispatched
+	private AtomicLongArray dispatches;
+	private AtomicLongArray steals;
+
+	private int finished;
+	private long turnaround;
+	private long maxTurnaround;
+	private int responded;
+	private long response;
+	private long maxResponse;
+
+	public RunQueues(String policy, Random r, int ncpus)
+	{
+		if (!policy.equals("fifo") && !policy.equals("mlfq") && !policy.equals("cfs") && !policy.equals("lottery"))
+			System.out.println("Unknown scheduler " + policy + ", using fifo.");
+		queues = new Scheduler[ncpus];
+		for (int i = 0; i < ncpus; i++)
+			queues[i] = Scheduler.create(policy, r, i);
+		dispatches = new AtomicLongArray(ncpus);
+		steals = new AtomicLongArray(ncpus);
+		since = new long[ncpus];
+	}
+
+	public void setTimers(CpuTimers t)
+	{
+		timers = t;
+	}
+
+	private long now()
+	{
+		return timers == null ? now.get() : timers.getTicks();
+	}
+
+	// Timer ticks so far, the time of the sleeping processes too
+	public long getTime()
+	{
+		return now();
+	}
+
+	public void created(ProcessDescriptor p)
+	{
+		p.getSchedInfo().created = now();
+	}
+
+	// Once per timer interrupt
+	public void clock()
+	{
+		long t = now.incrementAndGet();
+		for (int i = 0; i < queues.length; i++)
+			queues[i].clock(t);
+	}
+
+	// Tickless: at each one-shot timer interrupt, only for its CPU
+	public void clock(int cpu)
+	{
+		queues[cpu].clock(now());
+	}
+
+	// These two return the CPU whose queue got p
+	public int ready(ProcessDescriptor p)
+	{
+		int cpu = shortest();
+		queues[cpu].ready(p);
+		return cpu;
+	}
+
+	public void preempted(ProcessDescriptor p, int cpu)
+	{
+		charge(p, cpu);
+		queues[cpu].preempted(p);
+	}
+
+	public void blocked(ProcessDescriptor p, int cpu)
+	{
+		charge(p, cpu);
+		queues[cpu].blocked(p);
+	}
+
+	// Tickless: the time p was on the CPU
+	private void charge(ProcessDescriptor p, int cpu)
+	{
+		if (timers != null)
+			queues[cpu].tick(p, (int) (now() - since[cpu]));
+	}
+
+	public int getQueued(int cpu)
+	{
+		return queues[cpu].getSize();
+	}
+
+	public int woke(ProcessDescriptor p)
+	{
+		int cpu = p.getSchedInfo().cpu;
+		if (cpu < 0)
+			cpu = shortest();
+		queues[cpu].woke(p);
+		return cpu;
+	}
+
+	// Takes p out of the queue it is in; false if it is in none
+	public boolean remove(ProcessDescriptor p)
+	{
+		int cpu = p.getSchedInfo().queue;
+		return cpu >= 0 && queues[cpu].remove(p);
+	}
+
+	// The next process for cpu, from its own queue or stolen from another;
+	// null if there is none anywhere
+	public ProcessDescriptor next(int cpu)
+	{
+		ProcessDescriptor p = queues[cpu].next();
+		if (p == null)
+			p = steal(cpu);
+		if (p == null)
+			return null;
+
+		Scheduler.Info info = p.getSchedInfo();
+		long t = now();
+		info.cpu = cpu;
+		since[cpu] = t;
+		dispatches.incrementAndGet(cpu);
+		if (info.firstRun < 0)
+		{
+			info.firstRun = t;
+			responded(t - info.created);
+		}
+		return p;
+	}
+
+	public int slice(ProcessDescriptor p, int cpu)
+	{
+		return queues[cpu].slice(p);
+	}
+
+	public void tick(ProcessDescriptor p, int cpu)
+	{
+		queues[cpu].tick(p, 1);
+	}
+
+	synchronized public void exited(ProcessDescriptor p)
+	{
+		if (p.getPID() == 0)
+			return;
+		long t = now() - p.getSchedInfo().created;
+		++finished;
+		turnaround += t;
+		maxTurnaround = Math.max(maxTurnaround, t);
+	}
+
+	synchronized private void responded(long r)
+	{
+		++responded;
+		response += r;
+		maxResponse = Math.max(maxResponse, r);
+	}
+
+	synchronized public String getStats()
+	{
+		String s = "Scheduler " + queues[0].getName() + ": " + finished + " processes finished, turnaround "
+			+ (finished == 0 ? 0 : turnaround / finished) + " average, " + maxTurnaround + " maximum; "
+			+ responded + " started, response " + (responded == 0 ? 0 : response / responded)
+			+ " average, " + maxResponse + " maximum (in timer ticks)";
+		for (int i = 0; i < queues.length; i++)
+			s += "\nCPU " + i + ": " + queues[i].getSize() + " ready, " + dispatches.get(i)
+				+ " dispatched, " + steals.get(i) + " stolen";
+		return s;
+	}
+
+	// The sizes are read without the locks: a queue may change before we
+	// use it, and then we just choose a bit worse
+	private int shortest()
+	{
+		int best = 0;
+		for (int i = 1; i < queues.length; i++)
+			if (queues[i].getSize() < queues[best].getSize())
+				best = i;
+		return best;
+	}
+
+	private ProcessDescriptor steal(int cpu)
+	{
+		int busiest = -1;
+		for (int i = 0; i < queues.length; i++)
+			if (i != cpu && queues[i].getSize() > 0 && (busiest < 0 || queues[i].getSize() > queues[busiest].getSize()))
+				busiest = i;
+		if (busiest < 0)
+			return null;
+
+		ProcessDescriptor p = queues[busiest].steal();
+		if (p != null)
+		{
+			queues[cpu].adopt(p);
+			steals.incrementAndGet(cpu);
+		}
+		return p;
+	}
+}
@@ -0,0 +1,120 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+class ScalingBenchmark
+{
+	// Scaling benchmark for the thread-per-device execution model. For a
+	// growing number of CPUs and disks it builds the devices, starts them
+	// with DeviceThreads and runs the clock as fast as it can for a fixed
+	// time. The CPUs run a busy loop (the dummy program would just halt)
+	// and every disk has a driver that keeps it busy with reads. The report
+	// shows how many platform threads the JVM needed, and the ticks,
+	// instructions and disk operations per second. Compare runs with
+	// Config.VIRTUALTHREADS off and on.
+	//
+	// There is no kernel: no interrupt reaches the CPUs, and each disk
+	// interrupts its own driver. Needs the normal clock (Config.TURBO off),
+	// as in turbo mode the CPUs don't wait for it.
+	//
+	// Usage: java ScalingBenchmark [seconds per run]
+
+	static class DiskDriver implements Runnable
+	{
+		private Disk disk;
+		private IntController hint;
+		private GlobalSynch synch;
+		public volatile long ops;
+
+		public DiskDriver(Disk d, IntController i, GlobalSynch gs)
+		{
+			disk = d;
+			hint = i;
+			synch = gs;
+		}
+
+		public void run()
+		{
+			while (true)
+			{
+				disk.roda(Disk.OPERATION_READ, (int) (ops % Config.DISKSIZE), 0);
+				while (hint.getAndReset(0) == 0)
+					synch.mysleep(1);
+				++ops;
+			}
+		}
+	}
+
+	public static void main(String args[]) throws InterruptedException
+	{
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+		if (Config.TURBO)
+		{
+			System.out.println("Turn Config.TURBO off to run this benchmark.");
+			return;
+		}
+		// the disks log every operation, and print their image when they load it
+		PrintStream out = System.out;
+		PrintStream quiet = new PrintStream(OutputStream.nullOutputStream());
+		System.setErr(quiet);
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		System.out.println(DeviceThreads.isVirtual() ? "Virtual threads" : "Platform threads");
+		System.out.println("CPUs\tdisks\tthreads\tticks/s\tinstr/s\tdisk ops/s");
+
+		for (int ncpus = 1; ncpus <= 256; ncpus *= 4)
+		{
+			int ndisks = Math.max(2, ncpus / 2);
+			int before = threads.getThreadCount();
+
+			// Each run has its own clock: when the run is over nobody ticks
+			// it anymore, and its devices stay asleep for good.
+			GlobalSynch synch = new GlobalSynch(0);
+			IntController hint = new IntController(ncpus);
+			Memory mem = new Memory(128, 2);
+			mem.init(0, 'J', 'P', 'A', 0);
+			Random random = new Random(Config.SEED);
+
+			Processor[] procs = new Processor[ncpus];
+			for (int i = 0; i < ncpus; i++)
+			{
+				procs[i] = new Processor(i, hint, synch, mem, null, null, null, null, null);
+				procs[i].getMMU().setLimitRegister(mem.getPartitionSize());
+				DeviceThreads.start(procs[i], "CPU " + i);
+			}
+			System.setOut(quiet);
+			DiskDriver[] drivers = new DiskDriver[ndisks];
+			for (int i = 0; i < ndisks; i++)
+			{
+				IntController dhint = new IntController(1);
+				Disk d = new Disk(i, dhint, synch, Config.DISKSIZE, "disk.txt", new Random(random.nextLong()));
+				DeviceThreads.start(d, "Disk " + i);
+				drivers[i] = new DiskDriver(d, dhint, synch);
+				DeviceThreads.start(drivers[i], "Driver " + i);
+			}
+			Thread.sleep(200); // let the disks load their images
+			System.setOut(out);
+			int during = threads.getThreadCount();
+
+			long start = System.nanoTime();
+			long end = start + seconds * 1000000000L;
+			while (System.nanoTime() < end)
+			{
+				synch.mywakeup();
+				Thread.yield(); // as the real clock sleeps between ticks
+			}
+			double elapsed = (System.nanoTime() - start) / 1e9;
+
+			long instr = 0;
+			for (int i = 0; i < ncpus; i++)
+				instr += procs[i].getInstructionCount();
+			long ops = 0;
+			for (int i = 0; i < ndisks; i++)
+				ops += drivers[i].ops;
+			System.out.println(ncpus + "\t" + ndisks + "\t" + (during - before) + "\t"
+				+ (long) (synch.getTime() / elapsed) + "\t" + (long) (instr / elapsed) + "\t" + (long) (ops / elapsed));
+		}
+		System.exit(0);
+	}
+}
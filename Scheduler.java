@@ -0,0 +1,396 @@
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.TreeSet;
+
+abstract class Scheduler
+{
+	// The run queue of one CPU: the processes ready to run there, kept by
+	// the policy chosen with Config.SCHEDULER. The kernel reaches it through
+	// RunQueues, that chooses the queue. Each queue has its own lock, so the
+	// CPUs switch processes without waiting for each other.
+	//
+	// The policy is told when a process becomes ready (new, preempted or
+	// back from the disk) and when it blocks, gives the next process to run
+	// and the slice for it, and charges the process running on its CPU for
+	// the time it used. Times are counted in timer ticks.
+	//
+	// The ready processes are shown in the interface as the "Ready" list of
+	// the CPU; as they don't leave it in order, they are removed by PID.
+
+	// Scheduling data of each process, kept in its ProcessDescriptor
+	static class Info
+	{
+		long created;
+		long firstRun = -1;
+		int cpu = -1; // where it ran last
+		volatile int queue = -1; // CPU whose queue has it, -1 if none
+		int burst; // ticks in the CPU since it was last dispatched
+		int level; // MLFQ
+		long boost; // MLFQ boosts it has seen
+		long vruntime; // fair scheduler
+		int compensation; // lottery tickets for not using its quantum
+	}
+
+	private String list;
+	private int cpu;
+	private long now; // timer interrupts so far
+	private volatile int size; // ready processes, read without the lock to balance
+
+	public static Scheduler create(String name, Random r, int cpu)
+	{
+		Scheduler s;
+		if (name.equals("mlfq"))
+			s = new MlfqScheduler();
+		else if (name.equals("cfs"))
+			s = new FairScheduler();
+		else if (name.equals("lottery"))
+			s = new LotteryScheduler(r);
+		else
+			s = new FifoScheduler(r);
+		s.cpu = cpu;
+		s.list = "Ready " + cpu;
+		SopaInterface.addList(s.list);
+		Drawer.addList(s.list);
+		return s;
+	}
+
+	// The policy itself
+	abstract String getName();
+	abstract void add(ProcessDescriptor p); // p is ready
+	abstract ProcessDescriptor pick(); // takes a ready one out, null if none
+	abstract void drop(ProcessDescriptor p); // takes p out, it was killed
+	abstract int quantum(ProcessDescriptor p);
+	void charge(ProcessDescriptor p, int ticks) {} // p ran for that long
+	void preempt(ProcessDescriptor p) {} // p used up its slice
+	void block(ProcessDescriptor p) {} // p left the CPU for the disk
+	void wake(ProcessDescriptor p) {} // p is back from the disk
+	void leave(ProcessDescriptor p) {} // p goes to another CPU's queue
+	void join(ProcessDescriptor p) {} // p comes from another CPU's queue
+	void boost() {} // when the clock moves
+
+	long getTime() { return now; }
+	int getSize() { return size; }
+
+	synchronized public void clock(long ticks)
+	{
+		now = ticks;
+		boost();
+	}
+
+	synchronized public void ready(ProcessDescriptor p)
+	{
+		enqueue(p);
+	}
+
+	synchronized public void preempted(ProcessDescriptor p)
+	{
+		preempt(p);
+		enqueue(p);
+	}
+
+	synchronized public void blocked(ProcessDescriptor p)
+	{
+		block(p);
+		p.getSchedInfo().burst = 0;
+	}
+
+	synchronized public void woke(ProcessDescriptor p)
+	{
+		wake(p);
+		enqueue(p);
+	}
+
+	// The next process to run here, null if there is none
+	synchronized public ProcessDescriptor next()
+	{
+		ProcessDescriptor p = pick();
+		if (p != null)
+			dequeued(p);
+		return p;
+	}
+
+	// Takes p out if it is here, for the console's kill
+	synchronized public boolean remove(ProcessDescriptor p)
+	{
+		if (p.getSchedInfo().queue != cpu)
+			return false;
+		drop(p);
+		dequeued(p);
+		return true;
+	}
+
+	// Takes a process to run on an idle CPU, that has to join() it
+	synchronized public ProcessDescriptor steal()
+	{
+		ProcessDescriptor p = pick();
+		if (p != null)
+		{
+			dequeued(p);
+			leave(p);
+		}
+		return p;
+	}
+
+	synchronized public void adopt(ProcessDescriptor p)
+	{
+		join(p);
+	}
+
+	// Slice for p, that is going to run now. The dummy process only runs
+	// until the next timer interrupt that finds someone ready.
+	synchronized public int slice(ProcessDescriptor p)
+	{
+		if (p.getPID() == 0)
+			return Config.minSlice;
+		return quantum(p);
+	}
+
+	synchronized public void tick(ProcessDescriptor p, int ticks)
+	{
+		if (p.getPID() == 0)
+			return;
+		p.getSchedInfo().burst += ticks;
+		charge(p, ticks);
+	}
+
+	private void enqueue(ProcessDescriptor p)
+	{
+		add(p);
+		++size;
+		p.getSchedInfo().queue = cpu;
+		SopaInterface.addToList(p.getPID(), list);
+		Drawer.addToList(p.getPID(), list);
+	}
+
+	private void dequeued(ProcessDescriptor p)
+	{
+		--size;
+		p.getSchedInfo().queue = -1;
+		SopaInterface.removeFromList(p.getPID(), list);
+		Drawer.removeFromList(p.getPID(), list);
+		p.getSchedInfo().burst = 0;
+	}
+}
+
+class FifoScheduler extends Scheduler
+{
+	// The original policy: one queue, and a random slice between
+	// Config.minSlice and Config.maxSlice
+	private LinkedList<ProcessDescriptor> queue = new LinkedList<ProcessDescriptor>();
+	private Random random;
+
+	public FifoScheduler(Random r)
+	{
+		random = r;
+	}
+
+	String getName() { return "fifo"; }
+	void add(ProcessDescriptor p) { queue.addLast(p); }
+	ProcessDescriptor pick() { return queue.pollFirst(); }
+	void drop(ProcessDescriptor p) { queue.remove(p); }
+
+	int quantum(ProcessDescriptor p)
+	{
+		return (int) (Config.minSlice + random.nextDouble()*(Config.maxSlice-Config.minSlice));
+	}
+}
+
+class MlfqScheduler extends Scheduler
+{
+	// Multi-level feedback queue. New processes start at the top level, and
+	// each level down has twice the quantum of the one above. A process that
+	// uses up its quantum goes one level down; one that blocks before keeps
+	// its level, so I/O-bound processes stay on top. Every Config.MLFQBOOST
+	// ticks everybody goes back to the top, so nobody starves.
+	private LinkedList<ProcessDescriptor>[] levels;
+	private long boosts;
+	private long lastBoost;
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public MlfqScheduler()
+	{
+		levels = new LinkedList[Config.MLFQLEVELS];
+		for (int i = 0; i < levels.length; i++)
+			levels[i] = new LinkedList<ProcessDescriptor>();
+	}
+
+	String getName() { return "mlfq"; }
+
+	void add(ProcessDescriptor p)
+	{
+		Info info = p.getSchedInfo();
+		if (info.boost < boosts)
+		{
+			info.boost = boosts;
+			info.level = 0;
+		}
+		levels[info.level].addLast(p);
+	}
+
+	ProcessDescriptor pick()
+	{
+		for (int i = 0; i < levels.length; i++)
+			if (!levels[i].isEmpty())
+				return levels[i].pollFirst();
+		return null;
+	}
+
+	void drop(ProcessDescriptor p)
+	{
+		levels[p.getSchedInfo().level].remove(p);
+	}
+
+	int quantum(ProcessDescriptor p)
+	{
+		return Config.minSlice << p.getSchedInfo().level;
+	}
+
+	void preempt(ProcessDescriptor p)
+	{
+		Info info = p.getSchedInfo();
+		if (info.level < levels.length - 1)
+			++info.level;
+	}
+
+	// The processes that are not queued now see the boost when they are
+	void boost()
+	{
+		if (getTime() < lastBoost + Config.MLFQBOOST)
+			return;
+		lastBoost = getTime();
+		++boosts;
+		for (int i = 1; i < levels.length; i++)
+			while (!levels[i].isEmpty())
+				levels[0].addLast(levels[i].pollFirst());
+		for (ProcessDescriptor p : levels[0])
+		{
+			p.getSchedInfo().boost = boosts;
+			p.getSchedInfo().level = 0;
+		}
+	}
+}
+
+class FairScheduler extends Scheduler
+{
+	// Virtual runtime fair scheduler, in the style of Linux CFS. Each process
+	// accumulates the ticks it ran, and the one that ran least goes next; the
+	// ready ones are kept in a balanced tree ordered by that. The slice is a
+	// share of Config.CFSLATENCY among the ready processes. A process that
+	// arrives or wakes up starts at the smallest virtual runtime (minus a
+	// little, for the ones that slept), so it can't take the CPU for long
+	// just because it was away.
+	private final static int MINGRANULARITY = 2;
+	private TreeSet<ProcessDescriptor> tree;
+	private long minVruntime;
+
+	public FairScheduler()
+	{
+		tree = new TreeSet<ProcessDescriptor>((a, b) -> {
+			long va = a.getSchedInfo().vruntime, vb = b.getSchedInfo().vruntime;
+			if (va != vb)
+				return va < vb ? -1 : 1;
+			return Integer.compare(a.getPID(), b.getPID());
+		});
+	}
+
+	String getName() { return "cfs"; }
+
+	void add(ProcessDescriptor p)
+	{
+		Info info = p.getSchedInfo();
+		if (info.firstRun < 0)
+			info.vruntime = Math.max(info.vruntime, minVruntime);
+		tree.add(p);
+	}
+
+	ProcessDescriptor pick()
+	{
+		ProcessDescriptor p = tree.pollFirst();
+		if (p != null)
+			minVruntime = Math.max(minVruntime, p.getSchedInfo().vruntime);
+		return p;
+	}
+
+	void drop(ProcessDescriptor p)
+	{
+		tree.remove(p);
+	}
+
+	int quantum(ProcessDescriptor p)
+	{
+		return Math.max(MINGRANULARITY, Config.CFSLATENCY / (getSize() + 1));
+	}
+
+	void charge(ProcessDescriptor p, int ticks)
+	{
+		p.getSchedInfo().vruntime += ticks;
+	}
+
+	void wake(ProcessDescriptor p)
+	{
+		Info info = p.getSchedInfo();
+		info.vruntime = Math.max(info.vruntime, minVruntime - Config.CFSLATENCY / 2);
+	}
+
+	// The virtual runtimes of different CPUs don't compare: a process that
+	// moves keeps only how far it is ahead of the queue it left
+	void leave(ProcessDescriptor p)
+	{
+		p.getSchedInfo().vruntime -= minVruntime;
+	}
+
+	void join(ProcessDescriptor p)
+	{
+		p.getSchedInfo().vruntime += minVruntime;
+	}
+}
+
+class LotteryScheduler extends Scheduler
+{
+	// Lottery scheduling: every ready process holds Config.TICKETS tickets,
+	// and a random draw picks the one that runs. A process that blocks
+	// after using only a part of its quantum gets compensation tickets in
+	// proportion until it runs again, so I/O-bound processes get their
+	// share too.
+	private ArrayList<ProcessDescriptor> ready = new ArrayList<ProcessDescriptor>();
+	private Random random;
+
+	public LotteryScheduler(Random r)
+	{
+		random = r;
+	}
+
+	String getName() { return "lottery"; }
+	void add(ProcessDescriptor p) { ready.add(p); }
+	void drop(ProcessDescriptor p) { ready.remove(p); }
+	int quantum(ProcessDescriptor p) { return Config.maxSlice; }
+
+	ProcessDescriptor pick()
+	{
+		if (ready.isEmpty())
+			return null;
+		long total = 0;
+		for (ProcessDescriptor p : ready)
+			total += Config.TICKETS + p.getSchedInfo().compensation;
+		long draw = (long) (random.nextDouble() * total);
+		int i = 0;
+		for (; i < ready.size() - 1; i++)
+		{
+			draw -= Config.TICKETS + ready.get(i).getSchedInfo().compensation;
+			if (draw < 0)
+				break;
+		}
+		ProcessDescriptor p = ready.remove(i);
+		p.getSchedInfo().compensation = 0;
+		return p;
+	}
+
+	void block(ProcessDescriptor p)
+	{
+		Info info = p.getSchedInfo();
+		int used = Math.max(1, info.burst);
+		if (used < Config.maxSlice)
+			info.compensation = Config.TICKETS * Config.maxSlice / used - Config.TICKETS;
+	}
+}
@@ -14,11 +14,22 @@
 
 import java.awt.*;
 import java.awt.event.*;
+import java.io.BufferedOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.swing.*;
 
@@ -36,12 +47,18 @@ public class Sopa {
 		if(Config.LOGPRINTS)
 		{
 			try {
-				System.setErr( new PrintStream(new FileOutputStream("system_err.txt")) );
+				System.setErr( new PrintStream(new BufferedOutputStream(new FileOutputStream("system_err.txt"))) );
+				Runtime.getRuntime().addShutdownHook(new Thread() {
+					public void run() { System.err.flush(); }
+				});
 			} catch (FileNotFoundException e1) {
 				System.out.println("Coudln't open file for logging System.err.");
 			}
 		}
 		
+		// Instructions are not logged anymore, but traced (see Tracer)
+		Tracer.init(Config.NCPU);
+		
 		GlobalSynch globalSynch = new GlobalSynch(Config.QUANTUM); // quantum of X ms
 		IntController intController = new IntController();
 
@@ -62,12 +79,16 @@ public class Sopa {
 		console.setInterruptController(intController);
 		console.setGlobalSynch(globalSynch);
 
-		Memory mem = new Memory(128, Config.NPARTITIONS);
+		// Every random choice comes from the seed. Each component has its
+		// own generator, so the draws of one don't move the others'.
+		Random random = new Random(Config.SEED);
+		
+		Memory mem = new Memory(128, Config.NPARTITIONS, Config.OFFHEAP);
 		Timer timer = new Timer(intController, globalSynch);
-		Disk disk1 = new Disk(0,intController, globalSynch, 1024,"disk.txt");
-		Disk disk2 = new Disk(1,intController, globalSynch, 1024,"disk.txt");
+		Disk disk1 = new Disk(0,intController, globalSynch, Config.DISKSIZE,"disk.txt", new Random(random.nextLong()));
+		Disk disk2 = new Disk(1,intController, globalSynch, Config.DISKSIZE,"disk.txt", new Random(random.nextLong()));
 		
-		Kernel kernel = new Kernel(intController,mem,console, timer,disk1,disk2, Config.NCPU, Config.NPARTITIONS);
+		Kernel kernel = new Kernel(intController,mem,console, timer,disk1,disk2, Config.NCPU, new Random(random.nextLong()));
 		
 		drawer.setKernel(kernel);
 		
@@ -76,54 +97,321 @@ public class Sopa {
 			procs[i] = new Processor(i,intController, globalSynch, mem,
 				console, timer, disk1, disk2, kernel);
 		
+		// a single thread may run every device, see EventScheduler; the
+		// disks must know it before the kernel loads the first programs
+		EventScheduler scheduler = null;
+		if(Config.EVENTDRIVEN) {
+			scheduler = new EventScheduler(globalSynch);
+			console.setScheduler(scheduler);
+			disk1.setScheduler(scheduler);
+			disk2.setScheduler(scheduler);
+		}
+		
+		// In tickless mode the kernel arms a timer for each slice instead
+		CpuTimers cpuTimers = null;
+		if(Config.TICKLESS) {
+			cpuTimers = new CpuTimers(intController, globalSynch, Config.NCPU);
+			cpuTimers.setScheduler(scheduler);
+			kernel.setCpuTimers(cpuTimers);
+		}
+		
+		// Record or replay the interrupts, see IntRecorder
+		if(Config.RECORD || Config.REPLAY) {
+			IntRecorder recorder = new IntRecorder(globalSynch, scheduler, console);
+			try {
+				if(Config.REPLAY && scheduler == null)
+					System.out.println("Replay needs the event engine (Config.EVENTDRIVEN).");
+				else if(Config.REPLAY) {
+					recorder.replay(Config.RECORDFILE);
+					scheduler.setReplay(recorder);
+					console.setReplaying(true);
+				} else
+					recorder.record(Config.RECORDFILE);
+				intController.setRecorder(recorder);
+			} catch (IOException e) {
+				System.out.println("Couldn't open " + Config.RECORDFILE + " for the interrupts.");
+			}
+		}
+		
 		kernel.init(procs);
 
-		// start all threads
-		for(int i=0; i<Config.NCPU; i++)
-			procs[i].start();
-		timer.start();
-		disk1.start();
-		disk2.start();
-		globalSynch.start();
+		if(Config.EVENTDRIVEN) {
+			for(int i=0; i<Config.NCPU; i++)
+				scheduler.addProcessor(procs[i]);
+			if(cpuTimers == null)
+				scheduler.addTimer(intController);
+			scheduler.start();
+		} else {
+			// start all threads, see DeviceThreads
+			for(int i=0; i<Config.NCPU; i++)
+				DeviceThreads.start(procs[i], "CPU " + i);
+			if(cpuTimers == null)
+				DeviceThreads.start(timer, "Timer");
+			else
+				DeviceThreads.start(cpuTimers, "CPU timers");
+			DeviceThreads.start(disk1, "Disk 0");
+			DeviceThreads.start(disk2, "Disk 1");
+		}
+		DeviceThreads.start(globalSynch, "Clock");
+		if(Config.PERFREPORT > 0)
+			new PerfMeter(procs, Config.PERFREPORT).start();
+	}
+}
+
+class PerfMeter extends Thread {
+	// Prints how many instructions per second each CPU is executing, every
+	// few seconds. Useful to compare changes in the simulator itself.
+	private Processor[] procs;
+	private long[] last;
+	private int period;
+
+	public PerfMeter(Processor[] ps, int seconds) {
+		procs = ps;
+		period = seconds;
+		last = new long[ps.length];
+		setDaemon(true);
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				sleep(period * 1000);
+			} catch (InterruptedException e) {}
+			
+			StringBuilder sb = new StringBuilder("PERF:");
+			for (int i = 0; i < procs.length; i++) {
+				long count = procs[i].getInstructionCount();
+				sb.append(" CPU " + i + " " + (count - last[i]) / period + " instr/s");
+				last[i] = count;
+			}
+			sb.append(" (" + DeviceThreads.getStarted() + " devices, "
+				+ ManagementFactory.getThreadMXBean().getThreadCount() + " platform threads)");
+			System.out.println(sb);
+		}
 	}
 }
 
-class GlobalSynch extends Thread {
+class GlobalSynch implements Runnable {
 	// This is a master clock for the simulation. Instead of running concurrent
 	// threads with the normal sleep from Java, we use instead this GlobalSynch
 	// sleep system that can be controlled and executed step by step.
+	//
+	// In turbo mode the clock is not paced by the wall clock anymore: it is a
+	// virtual cycle counter advanced by the instructions the CPUs execute,
+	// Config.INSTRUCTIONS_PER_TICK instructions of each CPU making one tick.
+	// Halted CPUs don't count: the ones running make the ticks go, and if all
+	// of them are halted the clock moves by itself.
+	//
+	// The device threads (Timer, CpuTimers, Disk) wait for absolute ticks,
+	// their deadlines, and the clock doesn't go past a deadline until its
+	// device has handled it and set the next one. So however many ticks an
+	// instruction (or a translated block) is worth, no timer period nor disk
+	// turn is lost, and the devices never fall behind the CPUs: what the
+	// guest sees is the same, only as fast as the host can go.
+	//
+	// The devices wait for the clock on a ReentrantLock instead of the
+	// monitor, so that virtual threads don't hold their carrier meanwhile.
 	private int quantum;
-	private boolean stepMode;
+	private volatile boolean stepMode;
 	private Semaphore lock;
+	private volatile long time; // ticks since the start
+	private final static int CYCLEBITS = 20; // turbo mode: 1<<CYCLEBITS cycles per tick
+	private AtomicLong cycles;
+	private AtomicInteger running; // CPUs not halted
+	private final ReentrantLock clock = new ReentrantLock();
+	private final Condition ticked = clock.newCondition(); // the time or a deadline changed
+	private long[] deadlines = new long[4]; // of each device, NONE if it waits for nothing
+	private int devices;
+	public final static long NONE = Long.MAX_VALUE;
 
 	public GlobalSynch(int q) {
 		quantum = q;
 		stepMode = false;
 		lock = new Semaphore(1);
+		time = 0;
+		cycles = new AtomicLong();
+		running = new AtomicInteger(Config.NCPU);
 	}
 
-	public synchronized void mysleep(int n) {
-		for (int i = 0; i < n; ++i)
-			try {
-				wait();
-			} catch (InterruptedException e) {
+	public long getTime() { return time; }
+
+	public void mysleep(int n) {
+		sleepUntil(time + n);
+	}
+
+	private void sleepUntil(long until) {
+		clock.lock();
+		try {
+			while (time < until)
+				ticked.awaitUninterruptibly();
+		} finally {
+			clock.unlock();
+		}
+	}
+
+	// A device thread, with no deadline yet
+	public int addDevice() {
+		clock.lock();
+		try {
+			if (devices == deadlines.length)
+				deadlines = Arrays.copyOf(deadlines, 2*devices);
+			deadlines[devices] = NONE;
+			return devices++;
+		} finally {
+			clock.unlock();
+		}
+	}
+
+	// The clock stops at tick t until the device sets another deadline
+	public void setDeadline(int dev, long t) {
+		clock.lock();
+		try {
+			deadlines[dev] = t;
+			ticked.signalAll();
+		} finally {
+			clock.unlock();
+		}
+	}
+
+	// Another thread needs the device delay ticks from now (a request, a
+	// timer armed); returns that tick
+	public long wakeIn(int dev, long delay) {
+		clock.lock();
+		try {
+			long t = time + delay;
+			if (t < deadlines[dev]) {
+				deadlines[dev] = t;
+				ticked.signalAll();
 			}
+			return t;
+		} finally {
+			clock.unlock();
+		}
 	}
 
-	public synchronized void mywakeup() {
-		notifyAll();
+	// Waits for the deadline of the device, that may come sooner meanwhile
+	public void awaitDeadline(int dev) {
+		clock.lock();
+		try {
+			while (time < deadlines[dev])
+				ticked.awaitUninterruptibly();
+		} finally {
+			clock.unlock();
+		}
+	}
+
+	public void sleepUntil(int dev, long t) {
+		setDeadline(dev, t);
+		awaitDeadline(dev);
+	}
+
+	// How far the clock may go now; with the lock held
+	private long limit() {
+		long l = NONE;
+		for (int i = 0; i < devices; i++)
+			l = Math.min(l, deadlines[i]);
+		return l;
+	}
+
+	public void mywakeup() {
+		clock.lock();
+		try {
+			// a device still busy with this tick holds the clock
+			if (time < limit()) {
+				++time;
+				ticked.signalAll();
+			}
+		} finally {
+			clock.unlock();
+		}
+	}
+
+	// Called by the CPUs for the instructions they execute. Each instruction
+	// costs two ticks of the clock, either sleeping or, in turbo mode,
+	// counting cycles.
+	public void cpuTurn(int n) {
+		if (!Config.TURBO) {
+			mysleep(2*n);
+			return;
+		}
+		
+		// the fewer CPUs are running, the more each instruction is worth
+		long perInstruction = (long) ((1L << CYCLEBITS) / (Math.max(running.get(), 1) * Config.INSTRUCTIONS_PER_TICK));
+		long ticks = cycles.addAndGet(n * perInstruction) >> CYCLEBITS;
+		while (time < ticks) {
+			// honour Pause and Next Step at each tick
+			gate();
+			advanceTo(ticks);
+		}
+	}
+
+	public void cpuHalted() {
+		running.decrementAndGet();
+	}
+
+	public void cpuResumed() {
+		running.incrementAndGet();
+	}
+
+	// Turbo mode, called by a halted CPU. If every CPU is halted nobody is
+	// counting cycles, so it moves the clock to the next tick and returns
+	// true; the caller keeps doing it until its interrupt comes.
+	public boolean idleTick() {
+		if (running.get() > 0)
+			return false;
+		gate();
+		long t = (cycles.get() >> CYCLEBITS) + 1;
+		cycles.accumulateAndGet(t << CYCLEBITS, Math::max);
+		advanceTo(t);
+		Thread.yield();
+		return true;
+	}
+
+	// Called by the event engine, that has nothing to do until that tick
+	public void waitUntil(long ticks) {
+		if (!Config.TURBO) {
+			sleepUntil(ticks);
+			return;
+		}
+		while (time < ticks) {
+			gate();
+			advanceTo(ticks);
+		}
+	}
+
+	// Blocks while the simulation is paused
+	private void gate() {
+		lock.P();
+		if (stepMode == false)
+			lock.V();
+	}
+
+	// Moves the clock towards ticks, as far as the deadlines let it; if a
+	// device holds it where it is, waits until that one is done
+	private void advanceTo(long ticks) {
+		clock.lock();
+		try {
+			long t = Math.min(ticks, limit());
+			if (t > time) {
+				time = t;
+				ticked.signalAll();
+			} else if (time < ticks)
+				ticked.awaitUninterruptibly();
+		} finally {
+			clock.unlock();
+		}
 	}
 
 	public void run() {
 		while (true) {
-			lock.P();
-			if (stepMode == false)
-				lock.V();
+			if (!Config.TURBO)
+				gate();
 			try {
-				sleep(quantum);
+				Thread.sleep(quantum);
 				Drawer.tick();
 			} catch (InterruptedException e) {}
-			mywakeup();
+			if (!Config.TURBO)
+				mywakeup();
 		}
 	}
 
@@ -186,6 +474,7 @@ class ConsoleListener implements ActionListener {
 	private SlaveListener sl;
 	private String l;
 	private JTextField line;
+	private boolean replaying; // the lines come from the recording
 
 	public void setTextField(JTextField tx) { line = tx; }
 	
@@ -193,16 +482,28 @@ class ConsoleListener implements ActionListener {
 		hint = i;
 		sem = new Semaphore(0);
 		sl = new SlaveListener(i);
-		sl.start();
+		DeviceThreads.start(sl, "Console");
 	}
 
 	public void setGlobalSynch(GlobalSynch gs) {
 		synch = gs;
 	}
 
+	public void setScheduler(EventScheduler es) {
+		sl.setScheduler(es);
+	}
+
+	public void setReplaying(boolean r) {
+		replaying = r;
+	}
+
 	public void actionPerformed(ActionEvent e) {
-		l = e.getActionCommand();
 		line.setText("");
+		if (replaying) {
+			System.out.println("The console is replaying a recording, your line was ignored.");
+			return;
+		}
+		l = e.getActionCommand();
 
 		// Here goes the code that generates an interrupt
 		sl.setInterrupt();
@@ -211,19 +512,39 @@ class ConsoleListener implements ActionListener {
 	synchronized public String getLine() {
 		return l;
 	}
+
+	// A line typed by the replay, that interrupts right away
+	public void typeLine(String s) {
+		synchronized (this) {
+			l = s;
+		}
+		hint.set(15);
+	}
 }
 
-class SlaveListener extends Thread {
+class SlaveListener implements Runnable {
+	// With the event engine there is no thread: the interrupt is posted as
+	// an event, to happen at the tick the line was typed.
 	private IntController hint;
 	private Semaphore sem;
+	private EventScheduler scheduler;
 
 	public SlaveListener(IntController i) {
 		hint = i;
 		sem = new Semaphore(0);
 	}
 
+	public void setScheduler(EventScheduler es) {
+		scheduler = es;
+	}
+
 	public void setInterrupt() {
-		sem.V();
+		if (scheduler != null)
+			scheduler.post(new EventScheduler.Event() {
+				void fire() { hint.set(15); }
+			});
+		else
+			sem.V();
 	}
 
 	public void run() {
@@ -236,88 +557,181 @@ class SlaveListener extends Thread {
 
 class Semaphore {
 	// This class was found on the Internet and had some bugs fixed.
-	// It implements a semaphore using the Java built in monitors.
-	// Note how the primitives wait and notify are used inside the
-	// monitor, and make the process executing on it leave the
-	// monitor until another event happens.
+	// It implements a semaphore with a lock and a condition: await and
+	// signal make the thread executing on it leave the lock until
+	// another event happens. The lock is a ReentrantLock and not the
+	// Java built in monitor, so virtual threads can wait on it too.
 	int value;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition positive = lock.newCondition();
 
 	public Semaphore(int initialValue) {
 		value = initialValue;
 	}
 
-	public synchronized void P() {
-		while (value <= 0) {
-			try {
-				wait();
-			} catch (InterruptedException e) {
-			}
+	public void P() {
+		lock.lock();
+		try {
+			while (value <= 0)
+				positive.awaitUninterruptibly();
+			value--;
+		} finally {
+			lock.unlock();
 		}
-		value--;
 	}
 
-	public synchronized void V() {
-		value++;
-		notify();
+	public void V() {
+		lock.lock();
+		try {
+			value++;
+			positive.signal();
+		} finally {
+			lock.unlock();
+		}
 	}
 }
 
 class IntController {
-	// The interrupt controller component has a private semaphore to maintain
-	// interrupt requests coming from all other components.
+	// The interrupt controller component keeps the interrupt requests coming
+	// from all other components, for each CPU. Each CPU has a bitmask of the
+	// interrupts it has pending, and a counter for each interrupt, because
+	// the same one (the timer) may be raised again before it is handled.
+	// Devices raise interrupts concurrently without locks: they count it and
+	// then set its bit. Only the CPU itself takes them, so checking for an
+	// interrupt after each instruction is a single volatile read.
+	//
 	// Interruptions from memory are exceptions that need to be handled right
-	// now, and have priority over other Ints. So, memory interrupt has its
-	// own indicator, and the others compete among them using the Semaphore.
-	
-	// An additional semaphore is used for concurrent access by multiple
-	// processors.
-
-	private int number;
-	private Queue<Integer> numbers;
+	// now, and have priority over other Ints. They go to the CPU that made
+	// the access. Every other interrupt goes to the CPU in Config.INTROUTE,
+	// or to each CPU in turn if any of them can take it.
+	//
+	// The kernel on one CPU can also interrupt another one (an IPI), so that
+	// the other CPU does the work on its own thread. For each CPU we count
+	// the IPIs sent and taken, and how long the oldest one waited.
+
+	public final static int IPI_RESCHEDULE = 7;
+	public final static int IPI_DISPATCH = 8; // an idle CPU has a process to run
+	private final static int MAXINT = 64;
+	private final static int PAD = 8; // CPU masks on different cache lines
+	private final static VarHandle MASK = MethodHandles.arrayElementVarHandle(long[].class);
 	private final int memoryInterruptNumber = 3;
+	private final int ncpus;
+	private final long[] pending;
+	private final AtomicIntegerArray counts;
+	private final AtomicInteger nextCpu; // for the interrupts of any CPU
+	private IntRecorder recorder;
+	private final AtomicIntegerArray halted; // CPUs stopped by HLT
+	private final Runnable[] wakers;
+	private final AtomicLongArray ipiSentAt; // oldest IPI not taken, 0 if none
+	private final long[] ipiSent;
+	private final long[] ipiTaken;
+	private final long[] ipiWaits; // taken with their sending time known
+	private final long[] ipiWait; // nanoseconds, total and maximum
+	private final long[] ipiMaxWait;
 
 	public IntController() {
-		numbers = new LinkedList<Integer>();
-		number = 0;
+		this(Config.NCPU);
+	}
+
+	public IntController(int n) {
+		ncpus = n;
+		pending = new long[ncpus * PAD];
+		counts = new AtomicIntegerArray(ncpus * MAXINT);
+		nextCpu = new AtomicInteger();
+		halted = new AtomicIntegerArray(ncpus * PAD);
+		wakers = new Runnable[ncpus];
+		ipiSentAt = new AtomicLongArray(ncpus * PAD);
+		ipiSent = new long[ncpus];
+		ipiTaken = new long[ncpus];
+		ipiWaits = new long[ncpus];
+		ipiWait = new long[ncpus];
+		ipiMaxWait = new long[ncpus];
 	}
 
-	synchronized public void set(int n) {
-		if (n == memoryInterruptNumber)
-			number = n;
-		else {
-			numbers.offer(n);
+	synchronized public void setRecorder(IntRecorder r) {
+		recorder = r;
+	}
+
+	// Raises the interrupt on the CPU it is routed to. The ones for any CPU
+	// go to one that is running if there is one, not to wake a halted one.
+	public void set(int n) {
+		int cpu = n < Config.INTROUTE.length ? Config.INTROUTE[n] : -1;
+		if (cpu < 0) {
+			cpu = (nextCpu.getAndIncrement() & 0x7FFFFFFF) % ncpus;
+			for (int i = 0; i < ncpus && isHalted(cpu); i++)
+				cpu = (cpu + 1) % ncpus;
 		}
+		set(n, cpu % ncpus);
+	}
+
+	public void set(int n, int cpu) {
+		if (recorder != null)
+			recorder.interrupt(n);
+		counts.incrementAndGet(cpu * MAXINT + n);
+		MASK.getAndBitwiseOr(pending, cpu * PAD, 1L << n);
+		if (halted.get(cpu * PAD) != 0 && halted.compareAndSet(cpu * PAD, 1, 0))
+			wakers[cpu].run();
 	}
 
-	synchronized public int getAndReset() {
-		int ret;
+	// HLT: the CPU stops until an interrupt is routed to it, and then waker
+	// is called. Returns false if there is one already, and it goes on.
+	public boolean halt(int cpu, Runnable waker) {
+		wakers[cpu] = waker;
+		halted.set(cpu * PAD, 1);
+		return (long) MASK.getVolatile(pending, cpu * PAD) == 0
+			|| !halted.compareAndSet(cpu * PAD, 1, 0);
+	}
+
+	public boolean isHalted(int cpu) {
+		return halted.get(cpu * PAD) != 0;
+	}
+
+	// Interrupts CPU to from the kernel running on CPU from
+	public void sendIPI(int n, int from, int to) {
+		++ipiSent[from];
+		ipiSentAt.compareAndSet(to * PAD, 0, System.nanoTime());
+		set(n, to);
+	}
+
+	// Takes the next interrupt of the CPU, or returns 0 if there is none
+	public int getAndReset(int cpu) {
+		long mask = (long) MASK.getVolatile(pending, cpu * PAD);
+		if (mask == 0)
+			return 0;
 		
-		if (number > 0)
-		{
-			ret = number;
-			number = 0;
-		}
-		else
-		{
-			if(numbers.size()==0)
-				ret = 0;
-			else
-				ret = numbers.remove();
-		}
+		int n = (mask & (1L << memoryInterruptNumber)) != 0 ?
+			memoryInterruptNumber : Long.numberOfTrailingZeros(mask);
 		
-		return ret;
+		// clear the bit first: a device raising it meanwhile sets it again
+		MASK.getAndBitwiseAnd(pending, cpu * PAD, ~(1L << n));
+		if (counts.decrementAndGet(cpu * MAXINT + n) > 0)
+			MASK.getAndBitwiseOr(pending, cpu * PAD, 1L << n);
+		if (n == IPI_RESCHEDULE || n == IPI_DISPATCH)
+			takeIPI(cpu);
+		return n;
 	}
 
-	/*public void reset(int n) {
-		if (n == memoryInterruptNumber)
-			number = 0;
-		else {
-			numbers.remove();
+	private void takeIPI(int cpu) {
+		long sent = ipiSentAt.getAndSet(cpu * PAD, 0);
+		++ipiTaken[cpu];
+		if (sent != 0) {
+			long wait = System.nanoTime() - sent;
+			++ipiWaits[cpu];
+			ipiWait[cpu] += wait;
+			ipiMaxWait[cpu] = Math.max(ipiMaxWait[cpu], wait);
 		}
-	}*/
+	}
+
+	// The latency counts only the oldest of the IPIs pending together, the
+	// others coalesced with it have no sending time
+	public String getIPIStats(int cpu) {
+		long avg = ipiWaits[cpu] == 0 ? 0 : ipiWait[cpu] / ipiWaits[cpu];
+		return "CPU " + cpu + ": " + ipiSent[cpu] + " IPIs sent, " + ipiTaken[cpu] + " taken, latency "
+			+ avg / 1000 + " us average, " + ipiMaxWait[cpu] / 1000 + " us maximum";
+	}
 }
 
-class Timer extends Thread {
+class Timer implements Runnable {
 	// Our programmable timer. This is the OLD version that used to make
 	// interrupts to inform about the end of a CPU slice. It's supposed to be
 	// programmable. But has some weaknesses (bugs) that make it not fare.
@@ -326,21 +740,152 @@ class Timer extends Thread {
 	// count these timer ticks and test for a the time slice end.
 	private IntController hint;
 	private GlobalSynch synch;
+	private int dev;
 
 	public Timer(IntController i, GlobalSynch gs) {
 		hint = i;
 		synch = gs;
+		dev = gs.addDevice();
 	}
 
 	// This is the thread that keeps track of time and generates the
-	// interrupts
+	// interrupts, one for each period of two ticks
 	public void run() {
+		long next = synch.getTime() + 2;
 		while (true) {
-			synch.mysleep(2);
-			//System.err.println("tick!");
-			hint.set(2);
+			synch.sleepUntil(dev, next);
+			for (; next <= synch.getTime(); next += 2) {
+				//System.err.println("tick!");
+				hint.set(2);
+			}
 		}
 	}
 }
 
 
+
+class CpuTimers implements Runnable {
+	// Programmable one-shot timers, one for each CPU, used instead of the
+	// Timer with Config.TICKLESS. The kernel arms the timer of a CPU for the
+	// slice of the process it dispatches there, and the interrupt 2 comes
+	// to that CPU only when the slice is over. An idle CPU arms nothing, so
+	// an idle machine has no timer interrupts at all. Times are in timer
+	// ticks, two clock ticks each, as with the Timer.
+	//
+	// One more timer, armed by the kernel on any CPU, wakes the sleeping
+	// processes (see TimingWheel) with the interrupt SLEEPINT, taken by any
+	// CPU.
+	//
+	// With threads the device sleeps until the first deadline of the armed
+	// timers, or until one is armed sooner. With the event engine each
+	// arming is an event, that does nothing if the timer was armed again
+	// meanwhile.
+	public final static int SLEEPINT = 9;
+	private IntController hint;
+	private GlobalSynch synch;
+	private EventScheduler scheduler; // null with threads
+	private final int sleepTimer; // the kernel's, after the CPUs'
+	private final AtomicLongArray deadlines; // clock tick, 0 if not armed
+	private final AtomicInteger armed; // timers armed now
+	private final AtomicLong fired;
+	private final ReentrantLock lock = new ReentrantLock(); // the thread's next deadline
+	private int dev;
+
+	public CpuTimers(IntController i, GlobalSynch gs, int ncpus) {
+		hint = i;
+		synch = gs;
+		sleepTimer = ncpus;
+		deadlines = new AtomicLongArray(ncpus + 1);
+		armed = new AtomicInteger();
+		fired = new AtomicLong();
+		dev = gs.addDevice();
+	}
+
+	public void setScheduler(EventScheduler es) {
+		scheduler = es;
+	}
+
+	private long clockTime() {
+		return scheduler == null ? synch.getTime() : scheduler.getTime();
+	}
+
+	// Timer ticks since the start
+	public long getTicks() {
+		return clockTime() / 2;
+	}
+
+	public int getSleepTimer() {
+		return sleepTimer;
+	}
+
+	// Only called by the kernel running on that CPU (or, with the event
+	// engine, on its thread); the sleep timer by any, with the wheel's lock
+	public void arm(final int cpu, int ticks) {
+		long delay = 2L * Math.max(ticks, 1);
+		if (scheduler == null) {
+			lock.lock();
+			try {
+				if (deadlines.getAndSet(cpu, synch.wakeIn(dev, delay)) == 0)
+					armed.incrementAndGet();
+			} finally {
+				lock.unlock();
+			}
+			return;
+		}
+		final long deadline = clockTime() + delay;
+		if (deadlines.getAndSet(cpu, deadline) == 0)
+			armed.incrementAndGet();
+		scheduler.schedule(delay, new EventScheduler.Event() {
+			void fire() {
+				expire(cpu, deadline);
+			}
+		});
+	}
+
+	public void cancel(int cpu) {
+		if (deadlines.getAndSet(cpu, 0) != 0)
+			armed.decrementAndGet();
+	}
+
+	// False once it went off, until it is armed again
+	public boolean isArmed(int cpu) {
+		return deadlines.get(cpu) != 0;
+	}
+
+	private void expire(int cpu, long deadline) {
+		if (deadlines.compareAndSet(cpu, deadline, 0)) {
+			armed.decrementAndGet();
+			fired.incrementAndGet();
+			if (cpu == sleepTimer)
+				hint.set(SLEEPINT);
+			else
+				hint.set(2, cpu);
+		}
+	}
+
+	public String getStats() {
+		return fired.get() + " one-shot timer interrupts, " + armed.get() + " timers armed now";
+	}
+
+	public void run() {
+		while (true) {
+			// under the lock, so a timer armed meanwhile moves it sooner
+			lock.lock();
+			try {
+				long now = synch.getTime();
+				long next = GlobalSynch.NONE;
+				for (int i = 0; i < deadlines.length(); i++) {
+					long d = deadlines.get(i);
+					if (d != 0 && d <= now)
+						expire(i, d);
+					else if (d != 0)
+						next = Math.min(next, d);
+				}
+				synch.setDeadline(dev, next);
+			} finally {
+				lock.unlock();
+			}
+			synch.awaitDeadline(dev);
+		}
+	}
+}
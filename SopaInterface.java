@@ -108,10 +108,9 @@ class SopaInterface {
 	//	removes element from list and redisplay list
 	public static void removeFromList(int PID, String name){
 		LinkedList changedList = ( (LinkedList) myLinkedLists.get(name));
-		int test = -1;
 		if( !changedList.isEmpty() ){
-			test = Integer.parseInt( (String) changedList.removeFirst() );
-			if ( test != PID ) 
+			// the scheduler may take them out of order
+			if ( !changedList.remove( Integer.toString(PID) ) ) 
 			{
 				appendMsg("<INTERFACE> ERROR REMOVING " + PID + " FROM LIST: "+ name  + "\n" );
 			}else;
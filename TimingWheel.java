@@ -0,0 +1,171 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+class TimingWheel
+{
+	// The processes sleeping in the kernel (SLEEP and ALARM), kept in a
+	// hierarchical hashed timing wheel. There are LEVELS wheels of SLOTS
+	// slots each: level 0 has a slot per tick, level 1 a slot per SLOTS
+	// ticks, and so on. A process goes to the lowest level whose range
+	// reaches its wakeup tick, hashed by that tick, so adding and removing
+	// one is O(1) however many sleep. The wheel moves one tick at a time,
+	// waking the processes of the level 0 slot it reaches; each time level
+	// 0 goes round, the next slot of level 1 is spread over level 0 (and so
+	// on up), so every process moves at most LEVELS-1 times before it wakes.
+	//
+	// Wakeups further away than the whole wheel wait in the last slot they
+	// can reach, and are placed again when it comes round.
+	//
+	// Each slot is a doubly linked list through the Entry of each process.
+	// The kernel calls it holding the wheel's lock (see Kernel.moveSleepers).
+
+	private final static int BITS = 6;
+	private final static int SLOTS = 1 << BITS;
+	private final static int LEVELS = 4;
+	private final static long RANGE = 1L << (BITS*LEVELS);
+
+	static class Entry
+	{
+		ProcessDescriptor proc;
+		long expires;
+		Entry prev, next;
+		int level = -1, slot; // where it is, level -1 if not in the wheel
+
+		Entry(ProcessDescriptor p)
+		{
+			proc = p;
+		}
+	}
+
+	private Entry[][] wheel = new Entry[LEVELS][SLOTS];
+	private long now; // last tick done
+	private int count;
+	private long woken;
+	private long cascaded;
+
+	public TimingWheel(long start)
+	{
+		now = start;
+	}
+
+	public int getCount() { return count; }
+	public long getTime() { return now; }
+
+	// p wakes at tick expires, or at the next one if that has passed
+	public void add(Entry e, long expires)
+	{
+		if (e.level >= 0)
+			remove(e);
+		e.expires = Math.max(expires, now + 1);
+		place(e);
+		++count;
+	}
+
+	public void remove(Entry e)
+	{
+		if (e.level < 0)
+			return;
+		unlink(e);
+		--count;
+	}
+
+	public boolean isSleeping(Entry e)
+	{
+		return e.level >= 0;
+	}
+
+	// Moves the wheel up to tick t, and returns the processes that wake
+	public List<ProcessDescriptor> advance(long t)
+	{
+		List<ProcessDescriptor> expired = Collections.emptyList();
+		if (count == 0)
+			now = Math.max(now, t);
+		while (now < t)
+		{
+			++now;
+			for (int l = 1; l < LEVELS && (now & ((1L << (BITS*l)) - 1)) == 0; l++)
+				cascade(l, (int) (now >> (BITS*l)) & (SLOTS-1));
+
+			int s = (int) now & (SLOTS-1);
+			Entry e = wheel[0][s];
+			wheel[0][s] = null;
+			while (e != null)
+			{
+				Entry next = e.next;
+				e.level = -1;
+				e.prev = e.next = null;
+				--count;
+				++woken;
+				if (expired.isEmpty())
+					expired = new ArrayList<ProcessDescriptor>();
+				expired.add(e.proc);
+				e = next;
+			}
+			if (count == 0)
+				now = t;
+		}
+		return expired;
+	}
+
+	// The first tick at which advance() has something to do: a process
+	// waking in level 0 or the next time level 0 goes round; -1 if empty
+	public long nextTick()
+	{
+		if (count == 0)
+			return -1;
+		long end = (now | (SLOTS-1)) + 1;
+		for (long t = now + 1; t < end; t++)
+			if (wheel[0][(int) t & (SLOTS-1)] != null)
+				return t;
+		return end;
+	}
+
+	public String getStats()
+	{
+		return count + " processes sleeping, " + woken + " woken, " + cascaded + " moved down a level, tick " + now;
+	}
+
+	private void place(Entry e)
+	{
+		long delta = e.expires - now;
+		long at = e.expires;
+		if (delta >= RANGE)
+			at = now + RANGE - 1;
+		int l = 0;
+		while (l < LEVELS-1 && (at >> (BITS*l)) - (now >> (BITS*l)) >= SLOTS)
+			++l;
+		e.level = l;
+		e.slot = (int) (at >> (BITS*l)) & (SLOTS-1);
+		e.prev = null;
+		e.next = wheel[l][e.slot];
+		if (e.next != null)
+			e.next.prev = e;
+		wheel[l][e.slot] = e;
+	}
+
+	private void unlink(Entry e)
+	{
+		if (e.prev != null)
+			e.prev.next = e.next;
+		else
+			wheel[e.level][e.slot] = e.next;
+		if (e.next != null)
+			e.next.prev = e.prev;
+		e.level = -1;
+		e.prev = e.next = null;
+	}
+
+	private void cascade(int l, int s)
+	{
+		Entry e = wheel[l][s];
+		wheel[l][s] = null;
+		while (e != null)
+		{
+			Entry next = e.next;
+			++cascaded;
+			place(e);
+			e = next;
+		}
+	}
+}
@@ -0,0 +1,188 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+class Tracer
+{
+	// Instruction tracer. Instead of printing a line for each instruction,
+	// the CPUs write small fixed-size records into a preallocated ring buffer
+	// of their own. A writer thread drains the rings to a binary file in the
+	// background (Config.TRACEFLUSH), or else the rings just keep the last
+	// records and are written when the simulator exits. The TraceDecoder
+	// below turns the file back into text.
+	//
+	// Tracing can be switched on and off at any time from the console
+	// ("trace on", "trace off"); when it is off the only cost is reading a
+	// volatile flag.
+
+	// Record layout: cpu, pid, pc, decoded instruction, register, value.
+	// The register is the one the instruction changed, NOREG if none, or
+	// BLOCK for a translated block, whose value is how many instructions ran.
+	public final static int RECORD_INTS = 6;
+	public final static int NOREG = -1;
+	public final static int BLOCK = -2;
+
+	private static volatile boolean enabled = false;
+	private static Ring[] rings;
+	private static DataOutputStream out;
+
+	static class Ring
+	{
+		// One producer (the CPU) and one consumer (the writer thread)
+		private final int[] buffer;
+		private final int capacity;
+		private volatile long head; // records written
+		private volatile long tail; // records already flushed
+		private volatile long dropped; // only the CPU writes it
+
+		public Ring(int records)
+		{
+			capacity = records;
+			buffer = new int[records * RECORD_INTS];
+		}
+
+		public void put(int cpu, int pid, int pc, int instr, int r, int value)
+		{
+			long h = head;
+			if (Config.TRACEFLUSH && h - tail >= capacity)
+			{
+				// the writer is behind: lose this record, not the old ones
+				++dropped;
+				return;
+			}
+			int i = (int) (h % capacity) * RECORD_INTS;
+			buffer[i] = cpu;
+			buffer[i+1] = pid;
+			buffer[i+2] = pc;
+			buffer[i+3] = instr;
+			buffer[i+4] = r;
+			buffer[i+5] = value;
+			head = h + 1;
+		}
+
+		// Writes the records not flushed yet (at most the last capacity ones)
+		public void drain(DataOutputStream o) throws IOException
+		{
+			long h = head;
+			long t = Math.max(tail, h - capacity);
+			for (; t < h; t++)
+			{
+				int i = (int) (t % capacity) * RECORD_INTS;
+				for (int j = 0; j < RECORD_INTS; j++)
+					o.writeInt(buffer[i+j]);
+			}
+			tail = h;
+		}
+	}
+
+	public static void init(int ncpus)
+	{
+		rings = new Ring[ncpus];
+		for (int i = 0; i < ncpus; i++)
+			rings[i] = new Ring(Config.TRACEBUFFER);
+		enabled = Config.TRACE;
+
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(Config.TRACEFILE)));
+		} catch (IOException e) {
+			System.out.println("Couldn't open file for the trace.");
+			return;
+		}
+
+		if (Config.TRACEFLUSH)
+		{
+			Thread writer = new Thread() {
+				public void run() {
+					while (true) {
+						try {
+							sleep(100);
+						} catch (InterruptedException e) {}
+						flush();
+					}
+				}
+			};
+			writer.setDaemon(true);
+			writer.start();
+		}
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				flush();
+				try { out.close(); } catch (IOException e) {}
+			}
+		});
+	}
+
+	public static boolean isEnabled() { return enabled; }
+	public static void setEnabled(boolean e) { enabled = e; }
+
+	public static void record(int cpu, int pid, int pc, int instr, int r, int value)
+	{
+		rings[cpu].put(cpu, pid, pc, instr, r, value);
+	}
+
+	public static long getDropped()
+	{
+		long d = 0;
+		for (int i = 0; i < rings.length; i++)
+			d += rings[i].dropped;
+		return d;
+	}
+
+	synchronized private static void flush()
+	{
+		if (out == null)
+			return;
+		try {
+			for (int i = 0; i < rings.length; i++)
+				rings[i].drain(out);
+			out.flush();
+		} catch (IOException e) {
+			System.out.println("Couldn't write the trace.");
+		}
+	}
+}
+
+class TraceDecoder
+{
+	// Offline tool: java TraceDecoder [trace.bin]
+	public static void main(String args[]) throws IOException
+	{
+		String name = args.length > 0 ? args[0] : Config.TRACEFILE;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(name)));
+		int[] r = new int[Tracer.RECORD_INTS];
+
+		try {
+			while (true)
+			{
+				for (int j = 0; j < Tracer.RECORD_INTS; j++)
+					r[j] = in.readInt();
+
+				String line = "CPU " + r[0] + " PID " + r[1] + ": PC=" + r[2];
+				if (r[4] == Tracer.BLOCK)
+					line += " block of " + r[5];
+				else
+				{
+					int op = Decoder.op(r[3]);
+					line += " " + Decoder.MNEMONICS[op].trim() + " ";
+					// three letter instructions have a single operand
+					if (op == Decoder.OP_DEC || op == Decoder.OP_INC || op >= Decoder.OP_JPA)
+						line += Decoder.b(r[3]);
+					else
+						line += Decoder.a(r[3]) + " " + Decoder.b(r[3]);
+					if (r[4] != Tracer.NOREG)
+						line += "  r" + r[4] + "=" + r[5];
+				}
+				System.out.println(line);
+			}
+		} catch (EOFException e) {
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,148 @@
+class Translator
+{
+	// Optional translation tier for the processor. Instead of decoding and
+	// dispatching one word at a time, the translator finds a basic block
+	// starting at the PC (a run of instructions that ends at a jump) and
+	// compiles it into a chain of small Step objects, each one already
+	// specialized for its operands. The processor then runs a whole block
+	// per dispatch. Blocks are kept by physical address in the Memory, and
+	// any write to a word inside a block throws the block away.
+	//
+	// INT and illegal instructions are never translated: a block stops right
+	// before them and the interpreter executes them, so the kernel is always
+	// called from the same place. A load or store that would fault also stops
+	// the block, and the interpreter re-executes it to raise the interrupt.
+
+	public final static int MAXBLOCK = 32;
+
+	static abstract class Step
+	{
+		// Results of a step: go to the next step, stop the block before
+		// this step, or any other value is the new PC (a taken jump).
+		public final static int NEXT = -1;
+		public final static int STOP = -2;
+
+		abstract int exec(int[] reg, int[] flag, MMU mmu);
+	}
+
+	static class Block
+	{
+		public final int length;
+		public final Step[] steps;
+		public volatile boolean valid;
+
+		public Block(Step[] s)
+		{
+			steps = s;
+			length = s.length;
+			valid = true;
+		}
+	}
+
+	// Flags layout is the same as the Processor's
+	private final static int Z = 0;
+	private final static int E = 1;
+	private final static int L = 2;
+
+	// Finds the block that starts at the logical address pc, translating it
+	// if this is the first time. Returns null if nothing can be translated
+	// there, and the caller falls back to the interpreter.
+	public static Block lookup(Memory mem, MMU mmu, int pc)
+	{
+		int physical = mmu.physical(pc);
+		if (physical < 0)
+			return null;
+
+		Block blk = mem.getBlock(physical);
+		if (blk == null)
+		{
+			blk = translate(mem, mmu, pc);
+			if (blk != null)
+				mem.putBlock(physical, blk);
+		}
+		return blk;
+	}
+
+	private static Block translate(Memory mem, MMU mmu, int pc)
+	{
+		Step[] steps = new Step[MAXBLOCK];
+		Block blk;
+		int n = 0;
+		boolean end = false;
+
+		// in paged mode a block can't go past the end of its page
+		while (!end && n < MAXBLOCK && mmu.canAccess(pc+n) && (n == 0 || mmu.contiguous(pc+n)))
+		{
+			int decoded = mmu.fetch(pc+n);
+			int op = Decoder.op(decoded);
+			if (op >= Decoder.OP_INT) // INT, illegal and HLT
+				break;
+			steps[n++] = compile(op, Decoder.a(decoded), Decoder.b(decoded));
+			end = op >= Decoder.OP_JPA && op <= Decoder.OP_JPL;
+		}
+
+		if (n == 0)
+			return null;
+
+		Step[] s = new Step[n];
+		System.arraycopy(steps, 0, s, 0, n);
+		blk = new Block(s);
+		return blk;
+	}
+
+	private static Step compile(int op, final int a, final int b)
+	{
+		switch(op)
+		{
+			case Decoder.OP_LM:
+				return new Step() { int exec(int[] reg, int[] flag, MMU mmu) {
+					if (!mmu.canAccess(b)) return STOP;
+					reg[a] = mmu.read(b);
+					return NEXT; } };
+			case Decoder.OP_LC:
+				return new Step() { int exec(int[] reg, int[] flag, MMU mmu) {
+					reg[a] = b;
+					return NEXT; } };
+			case Decoder.OP_WM:
+				return new Step() { int exec(int[] reg, int[] flag, MMU mmu) {
+					if (!mmu.canAccess(b)) return STOP;
+					mmu.write(b, reg[a]);
+					return NEXT; } };
+			case Decoder.OP_SU:
+				return new Step() { int exec(int[] reg, int[] flag, MMU mmu) {
+					reg[a] = reg[a] - reg[b];
+					return NEXT; } };
+			case Decoder.OP_AD:
+				return new Step() { int exec(int[] reg, int[] flag, MMU mmu) {
+					reg[a] = reg[a] + reg[b];
+					return NEXT; } };
+			case Decoder.OP_DEC:
+				return new Step() { int exec(int[] reg, int[] flag, MMU mmu) {
+					reg[b] = reg[b] - 1;
+					return NEXT; } };
+			case Decoder.OP_INC:
+				return new Step() { int exec(int[] reg, int[] flag, MMU mmu) {
+					reg[b] = reg[b] + 1;
+					return NEXT; } };
+			case Decoder.OP_CP:
+				return new Step() { int exec(int[] reg, int[] flag, MMU mmu) {
+					flag[Z] = reg[a] == 0 ? 1 : 0;
+					flag[E] = reg[a] == reg[b] ? 1 : 0;
+					flag[L] = reg[a] < reg[b] ? 1 : 0;
+					return NEXT; } };
+			case Decoder.OP_JPA:
+				return new Step() { int exec(int[] reg, int[] flag, MMU mmu) {
+					return b; } };
+			case Decoder.OP_JPZ:
+				return new Step() { int exec(int[] reg, int[] flag, MMU mmu) {
+					return flag[Z] == 1 ? b : NEXT; } };
+			case Decoder.OP_JPE:
+				return new Step() { int exec(int[] reg, int[] flag, MMU mmu) {
+					return flag[E] == 1 ? b : NEXT; } };
+			case Decoder.OP_JPL:
+				return new Step() { int exec(int[] reg, int[] flag, MMU mmu) {
+					return flag[L] == 1 ? b : NEXT; } };
+		}
+		return null;
+	}
+}